@@ -0,0 +1,81 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The launcher command path: a one byte control request on endpoint zero for
+ * every move, fire and status poll. sendMove() and sendStatus() send it on
+ * the calling thread the way MissileLauncherActivity.sendCommand() used to,
+ * submitMove() hands it to the {@link CommandScheduler} the activity uses
+ * now and measures what the sensor thread pays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class CommandPathBenchmark {
+
+    // Simulated bus latency in microseconds, 0 for an infinitely fast device.
+    @Param({ "0", "125" })
+    public int latencyMicros;
+
+    private SimulatedUsbTransport mTransport;
+    private CommandScheduler mCommands;
+    private int mMove;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTransport = new SimulatedUsbTransport().setDevice(Sinks.DEVICE);
+        mTransport.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+        mCommands = new CommandScheduler();
+        mCommands.setTransport(mTransport);
+        mCommands.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCommands.stop();
+        mTransport.close();
+    }
+
+    @Benchmark
+    public int sendMove() {
+        return sendCommand(CommandScheduler.COMMAND_UP);
+    }
+
+    @Benchmark
+    public int sendStatus() {
+        return sendCommand(CommandScheduler.COMMAND_STATUS);
+    }
+
+    @Benchmark
+    public void submitMove() {
+        // Alternate directions so that every submit is a new motion.
+        mMove = mMove == CommandScheduler.COMMAND_LEFT ? CommandScheduler.COMMAND_RIGHT
+                : CommandScheduler.COMMAND_LEFT;
+        mCommands.submit(mMove);
+    }
+
+    // What MissileLauncherActivity.sendCommand() did before the scheduler,
+    // minus Log.d().
+    private int sendCommand(int control) {
+        synchronized (this) {
+            byte[] message = new byte[1];
+            message[0] = (byte) control;
+            return mTransport.controlTransfer(0x21, 0x9, 0x200, 0, message, message.length, 0);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of logging one received packet on the calling thread. The baseline
+ * is the String.format/composeString line the reader used to build for
+ * every packet, against the {@link UsbLog} record that is formatted later on
+ * its own thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class LogBenchmark {
+
+    @Param({ "8", "64" })
+    public int length;
+
+    private byte[] mBytes;
+    private UsbLog mLog;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mBytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            mBytes[i] = (byte) i;
+        }
+        mLog = new UsbLog("bench", Sinks.DISCARD, UsbLog.DEFAULT_CAPACITY);
+        mLog.setLevel(UsbLog.DEBUG);
+        mLog.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mLog.stop();
+    }
+
+    @Benchmark
+    public String composeString() {
+        return String.format("EP:" + 0x81 + " Message received of lengths %s and content: %s",
+                mBytes.length, compose(mBytes));
+    }
+
+    @Benchmark
+    public void usbLog() {
+        mLog.packet(UsbLog.DEBUG, "Message received", 0x81, mBytes, mBytes.length);
+    }
+
+    @Benchmark
+    public void usbLogFiltered() {
+        mLog.packet(UsbLog.VERBOSE, "Message received", 0x81, mBytes, mBytes.length);
+    }
+
+    // The helper HidBridge used before UsbLog.
+    private static String compose(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(b);
+            builder.append(" ");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,80 @@
+
+package com.android.missilelauncher;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The hand-off between the reader thread and the consumer: one thread offers
+ * packets, another polls them. The baseline is the LinkedList the received
+ * queue started from, locked so that it is safe to share.
+ */
+@State(Scope.Group)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class QueueBenchmark {
+
+    @Param({ "DROP_OLDEST", "DROP_NEWEST" })
+    public BoundedQueue.OverflowPolicy policy;
+
+    private final Packet mPacket = new PacketPool(1, 64).acquire();
+    private BoundedQueue<Packet> mBounded;
+    private LinkedList<Packet> mList;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mBounded = new BoundedQueue<Packet>(64, policy, null);
+        mList = new LinkedList<Packet>();
+    }
+
+    @Benchmark
+    @Group("bounded")
+    @GroupThreads(1)
+    public boolean boundedOffer() {
+        return mBounded.offer(mPacket);
+    }
+
+    @Benchmark
+    @Group("bounded")
+    @GroupThreads(1)
+    public Packet boundedPoll() {
+        return mBounded.poll();
+    }
+
+    @Benchmark
+    @Group("list")
+    @GroupThreads(1)
+    public boolean listOffer() {
+        synchronized (mList) {
+            // Keep the baseline from growing without limit when the
+            // consumer falls behind.
+            if (mList.size() >= 64) {
+                return false;
+            }
+            return mList.add(mPacket);
+        }
+    }
+
+    @Benchmark
+    @Group("list")
+    @GroupThreads(1)
+    public Packet listPoll() {
+        synchronized (mList) {
+            return mList.poll();
+        }
+    }
+}
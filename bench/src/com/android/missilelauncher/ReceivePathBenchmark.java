@@ -0,0 +1,96 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The receive path of HidBridge: a {@link BulkInReader} streams packets from
+ * a simulated endpoint into the received queue, and every operation takes
+ * one packet off the queue the way GetReceivedDataFromQueue() does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class ReceivePathBenchmark {
+
+    private static final int IN_ENDPOINT = 0x81;
+    private static final int PACKET_SIZE = 64;
+    private static final int QUEUE_CAPACITY = 64;
+
+    @Param({ "1", "4" })
+    public int queueDepth;
+
+    // Simulated bus latency in microseconds, 0 for an infinitely fast device.
+    @Param({ "0", "125" })
+    public int latencyMicros;
+
+    private SimulatedUsbTransport mTransport;
+    private BoundedQueue<Packet> mQueue;
+    private UsbLog mLog;
+    private BulkInReader mReader;
+    private Thread mThread;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTransport = new SimulatedUsbTransport().addEndpoint(IN_ENDPOINT, PACKET_SIZE);
+        mTransport.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+        mTransport.setStreaming(IN_ENDPOINT, true);
+        mQueue = new BoundedQueue<Packet>(QUEUE_CAPACITY,
+                BoundedQueue.OverflowPolicy.DROP_OLDEST, new BoundedQueue.Recycler<Packet>() {
+                    public void recycle(Packet packet) {
+                        packet.release();
+                    }
+                });
+        mLog = new UsbLog("bench", Sinks.DISCARD, UsbLog.DEFAULT_CAPACITY);
+        mLog.setLevel(UsbLog.DEBUG);
+        mLog.start();
+        PacketPool pool = new PacketPool(queueDepth + QUEUE_CAPACITY + 8, PACKET_SIZE);
+        mReader = new BulkInReader(mTransport, new int[] { IN_ENDPOINT }, queueDepth, pool,
+                new BulkInReader.Listener() {
+                    public void onPacketReceived(Packet packet) {
+                        mLog.packet(UsbLog.DEBUG, "Message received", packet);
+                        mQueue.offer(packet);
+                    }
+
+                    public void onReaderError(String message) {
+                        mLog.log(UsbLog.ERROR, message);
+                    }
+                });
+        mThread = new Thread(mReader, "bench-reader");
+        mThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mReader.stop();
+        mTransport.close();
+        mThread.join();
+        mQueue.clear();
+        mLog.stop();
+    }
+
+    @Benchmark
+    public byte[] receive() {
+        Packet packet;
+        while ((packet = mQueue.poll()) == null) {
+            Thread.yield();
+        }
+        byte[] bytes = new byte[packet.getLength()];
+        packet.copyTo(bytes, 0);
+        packet.release();
+        return bytes;
+    }
+}
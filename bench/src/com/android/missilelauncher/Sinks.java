@@ -0,0 +1,30 @@
+
+package com.android.missilelauncher;
+
+/**
+ * Do-nothing endpoints for the benchmarks, so that only the code under test
+ * is measured.
+ */
+final class Sinks {
+
+    // Throws the formatted log lines away.
+    static final UsbLog.Sink DISCARD = new UsbLog.Sink() {
+        public void write(int level, String tag, String line) {
+        }
+    };
+
+    // Accepts every OUT and control transfer.
+    static final SimulatedUsbTransport.Device DEVICE = new SimulatedUsbTransport.Device() {
+        public void onBulkOut(SimulatedUsbTransport transport, int endpointAddress,
+                byte[] buffer, int length) {
+        }
+
+        public int onControl(SimulatedUsbTransport transport, int requestType, int request,
+                int value, int index, byte[] buffer, int length) {
+            return length;
+        }
+    };
+
+    private Sinks() {
+    }
+}
@@ -0,0 +1,92 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The write path of HidBridge: a {@link UsbWriter} feeding a
+ * {@link FanOutWriter} that writes to every simulated bulk OUT endpoint.
+ * writeData() waits for the result like WriteData(). writeDataAsync() queues
+ * a burst of writes like WriteDataAsync() and only waits for the last one,
+ * so the writer can coalesce them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class WritePathBenchmark {
+
+    private static final int[] OUT_ENDPOINTS = { 0x01, 0x02 };
+    private static final int PACKET_SIZE = 64;
+    private static final int WRITE_TIMEOUT_MS = 1000;
+    private static final int BURST = 16;
+
+    @Param({ "1", "2" })
+    public int endpoints;
+
+    // Simulated bus latency in microseconds, 0 for an infinitely fast device.
+    @Param({ "0", "125" })
+    public int latencyMicros;
+
+    private final byte[] mMessage = "Hello World!!!".getBytes();
+    private SimulatedUsbTransport mTransport;
+    private FanOutWriter mFanOut;
+    private UsbWriter mWriter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTransport = new SimulatedUsbTransport().setDevice(Sinks.DEVICE);
+        mTransport.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+        int[] addresses = new int[endpoints];
+        int[] packetSizes = new int[endpoints];
+        for (int i = 0; i < endpoints; i++) {
+            addresses[i] = OUT_ENDPOINTS[i];
+            packetSizes[i] = PACKET_SIZE;
+            mTransport.addEndpoint(addresses[i], PACKET_SIZE);
+        }
+        mFanOut = new FanOutWriter(addresses, packetSizes, new FanOutWriter.EndpointWriter() {
+            public int write(int endpointAddress, byte[] buffer, int length) {
+                return mTransport.bulkTransfer(endpointAddress, buffer, length,
+                        WRITE_TIMEOUT_MS);
+            }
+        });
+        mWriter = new UsbWriter(mFanOut, PACKET_SIZE, UsbWriter.DEFAULT_QUEUE_CAPACITY);
+        mWriter.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mWriter.stop();
+        mFanOut.stop();
+        mTransport.close();
+    }
+
+    @Benchmark
+    public boolean writeData() throws InterruptedException, ExecutionException {
+        return mWriter.submit(mMessage, FanOutWriter.ALL).get().isSuccess();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public boolean writeDataAsync() throws InterruptedException, ExecutionException {
+        UsbFuture<WriteResult> last = null;
+        for (int i = 0; i < BURST; i++) {
+            last = mWriter.submit(mMessage, FanOutWriter.ALL);
+        }
+        return last.get().isSuccess();
+    }
+}
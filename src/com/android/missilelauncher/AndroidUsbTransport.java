@@ -0,0 +1,153 @@
+
+package com.android.missilelauncher;
+
+import java.nio.ByteBuffer;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+
+/**
+ * {@link UsbTransport} on top of the Android USB host API.
+ */
+final class AndroidUsbTransport implements UsbTransport {
+    // Since Android 8.0 (API 26) a completed request moves the buffer
+    // position to the number of bytes transferred, before that the length
+    // is not reported. The build target has no name for that level yet.
+    private static final boolean REPORTS_LENGTH = Build.VERSION.SDK_INT >= 26;
+
+    private final UsbDeviceConnection mConnection;
+    private final UsbInterface mInterface;
+    private final UsbEndpoint[] mEndpoints;
+
+    private AndroidUsbTransport(UsbDeviceConnection connection, UsbInterface intf) {
+        mConnection = connection;
+        mInterface = intf;
+        mEndpoints = new UsbEndpoint[intf.getEndpointCount()];
+        for (int i = 0; i < mEndpoints.length; i++) {
+            mEndpoints[i] = intf.getEndpoint(i);
+        }
+    }
+
+    /**
+     * Opens the device and claims the interface.
+     *
+     * @return the transport, or null if the device cannot be opened or the
+     *         interface cannot be claimed.
+     * @throws SecurityException if there is no permission for the device.
+     */
+    static AndroidUsbTransport open(UsbManager manager, UsbDevice device, UsbInterface intf) {
+        UsbDeviceConnection connection = manager.openDevice(device);
+        if (connection == null) {
+            return null;
+        }
+        // Claim and lock the interface in the android system.
+        if (!connection.claimInterface(intf, true)) {
+            connection.close();
+            return null;
+        }
+        return new AndroidUsbTransport(connection, intf);
+    }
+
+    public int bulkTransfer(int endpointAddress, byte[] buffer, int length, int timeout) {
+        UsbEndpoint endpoint = findEndpoint(endpointAddress);
+        if (endpoint == null) {
+            return -1;
+        }
+        return mConnection.bulkTransfer(endpoint, buffer, length, timeout);
+    }
+
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeout) {
+        return mConnection.controlTransfer(requestType, request, value, index, buffer, length,
+                timeout);
+    }
+
+    public Request newRequest(int endpointAddress) {
+        UsbEndpoint endpoint = findEndpoint(endpointAddress);
+        if (endpoint == null) {
+            return null;
+        }
+        UsbRequest request = new UsbRequest();
+        if (!request.initialize(mConnection, endpoint)) {
+            return null;
+        }
+        return new AndroidRequest(request, endpointAddress);
+    }
+
+    public Request requestWait() {
+        UsbRequest request = mConnection.requestWait();
+        if (request == null) {
+            return null;
+        }
+        return (AndroidRequest) request.getClientData();
+    }
+
+    public int getMaxPacketSize(int endpointAddress) {
+        UsbEndpoint endpoint = findEndpoint(endpointAddress);
+        return endpoint != null ? endpoint.getMaxPacketSize() : 0;
+    }
+
+    public void close() {
+        mConnection.releaseInterface(mInterface);
+        mConnection.close();
+    }
+
+    private UsbEndpoint findEndpoint(int address) {
+        for (UsbEndpoint endpoint : mEndpoints) {
+            if (endpoint.getAddress() == address) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    // The UsbRequest points back at its wrapper through its client data.
+    private static final class AndroidRequest implements Request {
+        private final UsbRequest mRequest;
+        private final int mEndpointAddress;
+        private Object mClientData;
+        private ByteBuffer mBuffer;
+        private int mLength;
+
+        AndroidRequest(UsbRequest request, int endpointAddress) {
+            mRequest = request;
+            mEndpointAddress = endpointAddress;
+            request.setClientData(this);
+        }
+
+        public int getEndpointAddress() {
+            return mEndpointAddress;
+        }
+
+        public boolean queue(ByteBuffer buffer, int length) {
+            mBuffer = buffer;
+            mLength = length;
+            return mRequest.queue(buffer, length);
+        }
+
+        public int getTransferredLength() {
+            return REPORTS_LENGTH ? mBuffer.position() : mLength;
+        }
+
+        public boolean cancel() {
+            return mRequest.cancel();
+        }
+
+        public void close() {
+            mRequest.close();
+        }
+
+        public Object getClientData() {
+            return mClientData;
+        }
+
+        public void setClientData(Object data) {
+            mClientData = data;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for several producers and consumers. Every slot of
+ * the ring carries a sequence number that tells producers and consumers
+ * whether it is theirs to use, so neither side takes a lock and nothing is
+ * allocated per element.
+ * <p>
+ * What happens when the queue is full is decided by the
+ * {@link OverflowPolicy}. Elements that are dropped are handed to the
+ * {@link Recycler}, so pooled elements find their way back to the pool.
+ */
+public final class BoundedQueue<E> {
+
+    /**
+     * What offer() does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        // Wait until a consumer makes room.
+        BLOCK,
+        // Drop the oldest element to make room for the new one.
+        DROP_OLDEST,
+        // Drop the element being offered.
+        DROP_NEWEST
+    }
+
+    /**
+     * Takes back the elements the queue drops.
+     */
+    public interface Recycler<E> {
+        void recycle(E element);
+    }
+
+    // Longest a blocked producer parks before checking for room again.
+    private static final long MAX_PARK_NANOS = 1000000L;
+
+    private final AtomicReferenceArray<E> mItems;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mHighWaterMark = new AtomicLong();
+    private final Recycler<E> mRecycler;
+    private volatile OverflowPolicy mPolicy;
+
+    /**
+     * @param capacity maximum number of elements, rounded up to a power of
+     *            two.
+     * @param policy what to do when the queue is full.
+     * @param recycler receives dropped elements, may be null.
+     */
+    public BoundedQueue(int capacity, OverflowPolicy policy, Recycler<E> recycler) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mItems = new AtomicReferenceArray<E>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+        mPolicy = policy;
+        mRecycler = recycler;
+    }
+
+    /**
+     * Adds an element, applying the overflow policy if the queue is full.
+     *
+     * @return true if the element was queued, false if it was dropped.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        if (tryOffer(element)) {
+            return true;
+        }
+        switch (mPolicy) {
+            case DROP_OLDEST:
+                do {
+                    E oldest = poll();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                } while (!tryOffer(element));
+                return true;
+
+            case BLOCK:
+                long parkNanos = 1000L;
+                while (!tryOffer(element)) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        drop(element);
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, parkNanos);
+                    parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                }
+                return true;
+
+            default:
+                drop(element);
+                return false;
+        }
+    }
+
+    /**
+     * @return the oldest element, or null if the queue is empty.
+     */
+    public E poll() {
+        long head = mHead.get();
+        while (true) {
+            int index = (int) head & mMask;
+            long diff = mSequences.get(index) - (head + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(head, head + 1)) {
+                    E element = mItems.get(index);
+                    mItems.lazySet(index, null);
+                    mSequences.set(index, head + mMask + 1);
+                    return element;
+                }
+                head = mHead.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                head = mHead.get();
+            }
+        }
+    }
+
+    /**
+     * Drops everything that is queued, handing it to the recycler.
+     */
+    public void clear() {
+        E element;
+        while ((element = poll()) != null) {
+            if (mRecycler != null) {
+                mRecycler.recycle(element);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return number of queued elements. Only a snapshot while producers or
+     *         consumers are running.
+     */
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity());
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return the largest number of elements that were queued at once.
+     */
+    public long getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    /**
+     * @return number of elements dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException();
+        }
+        mPolicy = policy;
+    }
+
+    private boolean tryOffer(E element) {
+        long tail = mTail.get();
+        while (true) {
+            int index = (int) tail & mMask;
+            long diff = mSequences.get(index) - tail;
+            if (diff == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mItems.lazySet(index, element);
+                    mSequences.set(index, tail + 1);
+                    updateHighWaterMark();
+                    return true;
+                }
+                tail = mTail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                tail = mTail.get();
+            }
+        }
+    }
+
+    private void updateHighWaterMark() {
+        long size = size();
+        long mark = mHighWaterMark.get();
+        while (size > mark && !mHighWaterMark.compareAndSet(mark, size)) {
+            mark = mHighWaterMark.get();
+        }
+    }
+
+    private void drop(E element) {
+        mDropped.incrementAndGet();
+        if (mRecycler != null) {
+            mRecycler.recycle(element);
+        }
+    }
+}
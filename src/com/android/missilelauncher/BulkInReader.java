@@ -0,0 +1,182 @@
+
+package com.android.missilelauncher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads bulk IN endpoints by keeping several requests queued on each of
+ * them and completing them through UsbTransport.requestWait(). There
+ * is always a request waiting on the bus, so the device can stream at the
+ * full bulk rate and nothing in the loop sleeps.
+ * <p>
+ * The requests read into packets taken from a {@link PacketPool}. A completed
+ * packet is handed to the listener and its request is re-queued with a fresh
+ * packet from the pool. When the pool is empty the packet is dropped and
+ * read into again.
+ */
+class BulkInReader implements Runnable {
+
+    /**
+     * Receives the packets completed by the reader. Called on the reader
+     * thread; the listener owns the packet and must release it.
+     */
+    interface Listener {
+        void onPacketReceived(Packet packet);
+
+        void onReaderError(String message);
+    }
+
+    // Number of requests kept in flight on every endpoint by default.
+    static final int DEFAULT_QUEUE_DEPTH = 4;
+
+    private final UsbTransport mTransport;
+    private final int[] mEndpoints;
+    private final int mQueueDepth;
+    private final PacketPool mPool;
+    private final Listener mListener;
+    private final List<UsbTransport.Request> mRequests = new ArrayList<UsbTransport.Request>();
+    private volatile boolean mStopped;
+    private volatile long mDelivered;
+    private volatile long mDropped;
+
+    /**
+     * @param transport open transport with the interface already claimed.
+     * @param endpoints addresses of the bulk IN endpoints to read.
+     * @param queueDepth number of requests kept queued on every endpoint.
+     * @param pool supplies the packets that are read into. It must hold at
+     *            least queueDepth packets per endpoint.
+     * @param listener receives the completed packets.
+     */
+    BulkInReader(UsbTransport transport, int[] endpoints, int queueDepth, PacketPool pool,
+            Listener listener) {
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("queueDepth must be at least 1");
+        }
+        mTransport = transport;
+        mEndpoints = endpoints;
+        mQueueDepth = queueDepth;
+        mPool = pool;
+        mListener = listener;
+    }
+
+    public void run() {
+        try {
+            if (!queueInitialRequests()) {
+                return;
+            }
+            while (!mStopped) {
+                UsbTransport.Request request = mTransport.requestWait();
+                if (request == null) {
+                    if (!mStopped) {
+                        mListener.onReaderError("requestWait failed, reader exiting");
+                    }
+                    break;
+                }
+                if (mStopped) {
+                    break;
+                }
+
+                Packet packet = (Packet) request.getClientData();
+                Packet next = mPool.acquire();
+                if (next != null) {
+                    packet.set(request.getEndpointAddress(), request.getTransferredLength());
+                    mListener.onPacketReceived(packet);
+                    mDelivered++;
+                } else {
+                    // Nobody released their packets in time, read over this one.
+                    next = packet;
+                    mDropped++;
+                }
+
+                int packetSize = mTransport.getMaxPacketSize(request.getEndpointAddress());
+                request.setClientData(next);
+                if (!request.queue(next.receiveBuffer(packetSize), packetSize)) {
+                    mListener.onReaderError("EP:" + request.getEndpointAddress()
+                            + " Failed to re-queue the read request, reader exiting");
+                    break;
+                }
+            }
+        } finally {
+            closeRequests();
+        }
+    }
+
+    /**
+     * Stops the reader. Pending requests are cancelled so that requestWait()
+     * returns and the reader thread can leave its loop.
+     */
+    void stop() {
+        mStopped = true;
+        synchronized (mRequests) {
+            for (UsbTransport.Request request : mRequests) {
+                request.cancel();
+            }
+        }
+    }
+
+    boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * @return number of packets handed to the listener.
+     */
+    long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    /**
+     * @return number of packets dropped because the pool was empty.
+     */
+    long getDroppedCount() {
+        return mDropped;
+    }
+
+    private boolean queueInitialRequests() {
+        synchronized (mRequests) {
+            for (int endpoint : mEndpoints) {
+                int packetSize = mTransport.getMaxPacketSize(endpoint);
+                if (packetSize > mPool.getPacketSize()) {
+                    mListener.onReaderError("EP:" + endpoint
+                            + " Max packet size " + packetSize + " does not fit the pool");
+                    return false;
+                }
+                for (int i = 0; i < mQueueDepth; i++) {
+                    Packet packet = mPool.acquire();
+                    if (packet == null) {
+                        mListener.onReaderError("EP:" + endpoint
+                                + " Not enough packets in the pool to queue the reads");
+                        return false;
+                    }
+                    UsbTransport.Request request = mTransport.newRequest(endpoint);
+                    if (request == null) {
+                        packet.release();
+                        mListener.onReaderError("EP:" + endpoint
+                                + " Cannot initialize the read request");
+                        return false;
+                    }
+                    request.setClientData(packet);
+                    mRequests.add(request);
+                    if (!request.queue(packet.receiveBuffer(packetSize), packetSize)) {
+                        mListener.onReaderError("EP:" + endpoint
+                                + " Cannot queue the read request");
+                        return false;
+                    }
+                }
+            }
+            return !mRequests.isEmpty();
+        }
+    }
+
+    private void closeRequests() {
+        synchronized (mRequests) {
+            for (UsbTransport.Request request : mRequests) {
+                request.cancel();
+                request.close();
+                ((Packet) request.getClientData()).release();
+            }
+            mRequests.clear();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+
+package com.android.missilelauncher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link UsbTransport} that passes every call through to another one and,
+ * while a {@link TrafficCapture} is set, records the bytes that went over
+ * the bus. Without a capture it costs a volatile read per call.
+ */
+final class CaptureTransport implements UsbTransport {
+    private final UsbTransport mTransport;
+    private volatile TrafficCapture mCapture;
+
+    CaptureTransport(UsbTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Starts recording to the capture, or stops with null. The capture is
+     * not closed here.
+     */
+    void setCapture(TrafficCapture capture) {
+        mCapture = capture;
+    }
+
+    TrafficCapture getCapture() {
+        return mCapture;
+    }
+
+    public int bulkTransfer(int endpointAddress, byte[] buffer, int length, int timeout) {
+        int result = mTransport.bulkTransfer(endpointAddress, buffer, length, timeout);
+        TrafficCapture capture = mCapture;
+        if (capture != null) {
+            capture.bulk(endpointAddress, buffer, length, result);
+        }
+        return result;
+    }
+
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeout) {
+        int result = mTransport.controlTransfer(requestType, request, value, index, buffer,
+                length, timeout);
+        TrafficCapture capture = mCapture;
+        if (capture != null) {
+            capture.control(requestType, request, value, index, buffer, length, result);
+        }
+        return result;
+    }
+
+    public Request newRequest(int endpointAddress) {
+        Request request = mTransport.newRequest(endpointAddress);
+        return request != null ? new CapturedRequest(request) : null;
+    }
+
+    public Request requestWait() {
+        Request completed = mTransport.requestWait();
+        if (completed == null) {
+            return null;
+        }
+        CapturedRequest request = (CapturedRequest) completed.getClientData();
+        TrafficCapture capture = mCapture;
+        // Cancelled requests come back too, with nothing the device sent.
+        if (capture != null && !request.mCancelled) {
+            capture.request(request.getEndpointAddress(), request.mBuffer,
+                    request.getTransferredLength());
+        }
+        return request;
+    }
+
+    public int getMaxPacketSize(int endpointAddress) {
+        return mTransport.getMaxPacketSize(endpointAddress);
+    }
+
+    public void close() {
+        mTransport.close();
+    }
+
+    // Remembers the buffer so the data can be recorded on completion.
+    private static final class CapturedRequest implements Request {
+        private final Request mRequest;
+        private Object mClientData;
+        private volatile ByteBuffer mBuffer;
+        private volatile boolean mCancelled;
+
+        CapturedRequest(Request request) {
+            mRequest = request;
+            request.setClientData(this);
+        }
+
+        public int getEndpointAddress() {
+            return mRequest.getEndpointAddress();
+        }
+
+        public boolean queue(ByteBuffer buffer, int length) {
+            mBuffer = buffer;
+            mCancelled = false;
+            return mRequest.queue(buffer, length);
+        }
+
+        public int getTransferredLength() {
+            return mRequest.getTransferredLength();
+        }
+
+        public boolean cancel() {
+            mCancelled = true;
+            return mRequest.cancel();
+        }
+
+        public void close() {
+            mRequest.close();
+        }
+
+        public Object getClientData() {
+            return mClientData;
+        }
+
+        public void setClientData(Object data) {
+            mClientData = data;
+        }
+    }
+}
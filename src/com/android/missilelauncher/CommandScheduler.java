@@ -0,0 +1,225 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the launcher commands from a single control thread, so the sensor
+ * and UI threads never block on a control transfer.
+ * <p>
+ * Pending commands live in one atomic word. A motion replaces the motion
+ * that has not been sent yet, so a burst of sensor events only sends the
+ * latest direction. STOP and FIRE are never collapsed away: a STOP discards
+ * the motion submitted before it and is always sent, and every FIRE is sent.
+ * FIREs keep their place around a pending STOP, the ones submitted before
+ * it go out before it and the ones submitted after it after it, following
+ * the pending motion. Status polls are coalesced into one.
+ */
+final class CommandScheduler implements Runnable, MotionController.Sink {
+
+    /**
+     * Told about every command that went out, on the control thread.
+     */
+    interface Listener {
+        void onCommandSent(int command);
+    }
+
+    // USB control commands
+    static final int COMMAND_UP = 1;
+    static final int COMMAND_DOWN = 2;
+    static final int COMMAND_RIGHT = 4;
+    static final int COMMAND_LEFT = 8;
+    static final int COMMAND_FIRE = 16;
+    static final int COMMAND_STOP = 32;
+    static final int COMMAND_STATUS = 64;
+
+    // Layout of the pending state: the motion in the low byte, then the
+    // STOP and status flags, then the number of FIRE commands submitted
+    // before the pending STOP, or with none pending, and the number
+    // submitted after it.
+    private static final int MOTION_MASK = 0xff;
+    private static final int STOP_PENDING = 1 << 8;
+    private static final int STATUS_PENDING = 1 << 9;
+    private static final int FIRE_SHIFT = 10;
+    private static final int FIRE_AFTER_STOP_SHIFT = 20;
+    private static final int FIRE_MAX = (1 << 10) - 1;
+
+    private final AtomicInteger mPending = new AtomicInteger();
+    // The one frame every command is sent in, only touched by the control
+    // thread.
+    private final byte[] mFrame = new byte[1];
+    private final AtomicLong mCollapsed = new AtomicLong();
+    private volatile UsbTransport mTransport;
+    private volatile UsbMetrics mMetrics;
+    private volatile Listener mListener;
+    private volatile Thread mThread;
+    private volatile long mSent;
+
+    /**
+     * Sets the transport the commands go to, null to discard them.
+     */
+    void setTransport(UsbTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Sets the metrics the first command is recorded in, null for none.
+     */
+    void setMetrics(UsbMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mPending.set(0);
+        Thread thread = new Thread(this, "MissileLauncher-control");
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the control thread. Commands that were not sent yet are
+     * discarded.
+     */
+    synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Queues a command without blocking.
+     */
+    public void submit(int command) {
+        int state;
+        int next;
+        do {
+            state = mPending.get();
+            switch (command) {
+                case COMMAND_STOP:
+                    // The FIREs after an earlier pending STOP join the ones
+                    // before it, the one STOP goes out after all of them.
+                    int before = Math.min(FIRE_MAX, firesBeforeStop(state)
+                            + firesAfterStop(state));
+                    next = (state & STATUS_PENDING) | STOP_PENDING | (before << FIRE_SHIFT);
+                    break;
+                case COMMAND_FIRE:
+                    if ((state & STOP_PENDING) != 0) {
+                        int after = Math.min(FIRE_MAX, firesAfterStop(state) + 1);
+                        next = (state & ~(FIRE_MAX << FIRE_AFTER_STOP_SHIFT))
+                                | (after << FIRE_AFTER_STOP_SHIFT);
+                    } else {
+                        int fires = Math.min(FIRE_MAX, firesBeforeStop(state) + 1);
+                        next = (state & ~(FIRE_MAX << FIRE_SHIFT)) | (fires << FIRE_SHIFT);
+                    }
+                    break;
+                case COMMAND_STATUS:
+                    next = state | STATUS_PENDING;
+                    break;
+                default:
+                    next = (state & ~MOTION_MASK) | (command & MOTION_MASK);
+                    break;
+            }
+        } while (!mPending.compareAndSet(state, next));
+
+        if ((state & MOTION_MASK) != 0 && command != COMMAND_FIRE
+                && command != COMMAND_STATUS) {
+            mCollapsed.incrementAndGet();
+        }
+        if (state == 0) {
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * @return number of control transfers sent.
+     */
+    long getSentCount() {
+        return mSent;
+    }
+
+    /**
+     * @return number of motions replaced before they were sent.
+     */
+    long getCollapsedCount() {
+        return mCollapsed.get();
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (mThread == self) {
+            int state = mPending.getAndSet(0);
+            if (state == 0) {
+                LockSupport.park(this);
+                if (self.isInterrupted()) {
+                    break;
+                }
+                continue;
+            }
+            if ((state & STOP_PENDING) != 0) {
+                // A motion still pending was submitted after the STOP.
+                sendFires(firesBeforeStop(state));
+                send(COMMAND_STOP);
+                if ((state & MOTION_MASK) != 0) {
+                    send(state & MOTION_MASK);
+                }
+                sendFires(firesAfterStop(state));
+            } else {
+                if ((state & MOTION_MASK) != 0) {
+                    send(state & MOTION_MASK);
+                }
+                sendFires(firesBeforeStop(state));
+            }
+            if ((state & STATUS_PENDING) != 0) {
+                send(COMMAND_STATUS);
+            }
+        }
+    }
+
+    private static int firesBeforeStop(int state) {
+        return (state >>> FIRE_SHIFT) & FIRE_MAX;
+    }
+
+    private static int firesAfterStop(int state) {
+        return (state >>> FIRE_AFTER_STOP_SHIFT) & FIRE_MAX;
+    }
+
+    private void sendFires(int count) {
+        for (; count > 0; count--) {
+            send(COMMAND_FIRE);
+        }
+    }
+
+    private void send(int command) {
+        UsbTransport transport = mTransport;
+        if (transport == null) {
+            return;
+        }
+        mFrame[0] = (byte) command;
+        // Send command via a control request on endpoint zero
+        int result = transport.controlTransfer(0x21, 0x9, 0x200, 0, mFrame, mFrame.length, 0);
+        mSent++;
+        UsbMetrics metrics = mMetrics;
+        if (metrics != null && result >= 0 && command != COMMAND_STATUS) {
+            metrics.recordCommand(System.nanoTime());
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCommandSent(command);
+        }
+    }
+}
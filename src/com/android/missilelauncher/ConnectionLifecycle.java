@@ -0,0 +1,245 @@
+
+package com.android.missilelauncher;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a device connected: finds it, gets the permission, opens it, streams
+ * from it and starts over when any of that fails, until stopped.
+ * <p>
+ * Retries wait with exponential backoff and jitter so a missing device is
+ * not polled hard. Attach and permission events cut the wait short, so
+ * after a replug streaming resumes as soon as the device is back.
+ */
+public final class ConnectionLifecycle implements Runnable {
+
+    public enum State {
+        DETACHED, PERMISSION_PENDING, OPEN, STREAMING, FAULTED
+    }
+
+    /**
+     * The platform side of the connection, called on the lifecycle thread.
+     */
+    interface Driver {
+        /**
+         * @return true if the device is attached.
+         */
+        boolean isAttached();
+
+        boolean hasPermission();
+
+        /**
+         * Asks for the permission, the answer comes through
+         * {@link ConnectionLifecycle#onPermissionResult(boolean)}.
+         */
+        void requestPermission();
+
+        /**
+         * Opens the device and claims the interface.
+         *
+         * @return false on failure.
+         */
+        boolean open();
+
+        /**
+         * Streams from the open device until the stream ends, which is a
+         * fault unless the lifecycle was stopped.
+         */
+        void stream();
+
+        /**
+         * Closes the device, makes {@link #stream()} return.
+         */
+        void close();
+    }
+
+    interface Listener {
+        void onStateChanged(State previous, State state);
+    }
+
+    static final long MIN_BACKOFF_MS = 50;
+    static final long MAX_BACKOFF_MS = 5000;
+    // Streaming this long counts as a good connection and resets the backoff.
+    static final long STABLE_MS = 1000;
+
+    private final Driver mDriver;
+    private final Listener mListener;
+    private final Random mRandom = new Random();
+    private volatile State mState = State.DETACHED;
+    private volatile boolean mStopped;
+    // Set by the events that make waiting pointless, guarded by this.
+    private boolean mKicked;
+    private long mBackoffMs = MIN_BACKOFF_MS;
+    private volatile long mKickedAt;
+    private volatile long mLastReconnect = -1;
+    private volatile long mReconnects;
+
+    ConnectionLifecycle(Driver driver, Listener listener) {
+        mDriver = driver;
+        mListener = listener;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return time from the last attach or permission event to streaming
+     *         again, -1 if there was none yet.
+     */
+    public long getLastReconnectNanos() {
+        return mLastReconnect;
+    }
+
+    /**
+     * @return number of times streaming started.
+     */
+    public long getConnectCount() {
+        return mReconnects;
+    }
+
+    /**
+     * The device was attached, try again right away.
+     */
+    void onAttached() {
+        mKickedAt = System.nanoTime();
+        kick(true);
+    }
+
+    /**
+     * The device was detached, stop streaming from it.
+     */
+    void onDetached() {
+        if (mState == State.OPEN || mState == State.STREAMING) {
+            mDriver.close();
+        } else {
+            kick(false);
+        }
+    }
+
+    void onPermissionResult(boolean granted) {
+        if (granted) {
+            mKickedAt = System.nanoTime();
+        }
+        kick(granted);
+    }
+
+    /**
+     * Makes {@link #run()} return. The driver is closed on the way out.
+     */
+    void stop() {
+        mStopped = true;
+        kick(false);
+        mDriver.close();
+    }
+
+    /**
+     * Runs the lifecycle on the calling thread until {@link #stop()}. A
+     * lifecycle runs once, a new one is needed to start over.
+     */
+    public void run() {
+        try {
+            while (!mStopped) {
+                switch (mState) {
+                    case DETACHED:
+                        if (!mDriver.isAttached()) {
+                            waitForRetry();
+                        } else if (mDriver.hasPermission()) {
+                            setState(State.OPEN);
+                        } else {
+                            setState(State.PERMISSION_PENDING);
+                            mDriver.requestPermission();
+                        }
+                        break;
+                    case PERMISSION_PENDING:
+                        // The answer normally comes as an event, check
+                        // every now and then in case it got lost.
+                        waitForRetry();
+                        if (!mDriver.isAttached()) {
+                            setState(State.DETACHED);
+                        } else if (mDriver.hasPermission()) {
+                            setState(State.OPEN);
+                        }
+                        break;
+                    case OPEN:
+                        if (mDriver.open()) {
+                            setState(State.STREAMING);
+                        } else {
+                            setState(State.FAULTED);
+                        }
+                        break;
+                    case STREAMING:
+                        mReconnects++;
+                        long kickedAt = mKickedAt;
+                        if (kickedAt != 0) {
+                            mLastReconnect = System.nanoTime() - kickedAt;
+                            mKickedAt = 0;
+                        }
+                        long started = System.nanoTime();
+                        mDriver.stream();
+                        if (System.nanoTime() - started
+                                >= TimeUnit.MILLISECONDS.toNanos(STABLE_MS)) {
+                            synchronized (this) {
+                                mBackoffMs = MIN_BACKOFF_MS;
+                            }
+                        }
+                        if (!mStopped) {
+                            setState(State.FAULTED);
+                        }
+                        break;
+                    case FAULTED:
+                        mDriver.close();
+                        waitForRetry();
+                        setState(State.DETACHED);
+                        break;
+                }
+            }
+        } finally {
+            mDriver.close();
+            setState(State.DETACHED);
+        }
+    }
+
+    private void setState(State state) {
+        State previous = mState;
+        if (previous != state) {
+            mState = state;
+            if (mListener != null) {
+                mListener.onStateChanged(previous, state);
+            }
+        }
+    }
+
+    private synchronized void kick(boolean resetBackoff) {
+        if (resetBackoff) {
+            mBackoffMs = MIN_BACKOFF_MS;
+        }
+        mKicked = true;
+        notifyAll();
+    }
+
+    // Waits for the backoff with jitter or until kicked, then backs off
+    // further for the next time.
+    private synchronized void waitForRetry() {
+        long backoff = mBackoffMs;
+        // Half fixed, half random, so devices retrying together spread out.
+        long delay = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2 + 1));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        try {
+            long remaining;
+            while (!mKicked && !mStopped
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            mStopped = true;
+            Thread.currentThread().interrupt();
+        }
+        if (mKicked) {
+            mKicked = false;
+        } else {
+            mBackoffMs = Math.min(MAX_BACKOFF_MS, backoff * 2);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+/**
+ * The endpoint layout of every device in the {@link DeviceFilter}, by vendor
+ * and product ID. A layout is worked out the first time a device with those
+ * IDs is seen and reused whenever one is attached again, so opening a known
+ * device needs neither a walk over its interfaces and endpoints nor any
+ * allocation.
+ */
+final class DescriptorCache {
+
+    /**
+     * What we need to know to talk to a device, addresses and sizes only so
+     * that it stays valid across reconnects.
+     */
+    static final class Layout {
+        final int interfaceIndex;
+        // Interrupt IN endpoint the status is read from, -1 if none.
+        final int statusEndpoint;
+        final int[] bulkIn;
+        final int[] bulkInPacketSizes;
+        final int[] bulkOut;
+        final int[] bulkOutPacketSizes;
+
+        Layout(int interfaceIndex, int statusEndpoint, int[] bulkIn, int[] bulkInPacketSizes,
+                int[] bulkOut, int[] bulkOutPacketSizes) {
+            this.interfaceIndex = interfaceIndex;
+            this.statusEndpoint = statusEndpoint;
+            this.bulkIn = bulkIn;
+            this.bulkInPacketSizes = bulkInPacketSizes;
+            this.bulkOut = bulkOut;
+            this.bulkOutPacketSizes = bulkOutPacketSizes;
+        }
+
+        /**
+         * Walks every interface of the device and keeps the one with the
+         * most bulk endpoints, the first one on a tie.
+         *
+         * @return null if the device has no interface.
+         */
+        static Layout scan(UsbDevice device) {
+            Layout best = null;
+            for (int i = 0; i < device.getInterfaceCount(); i++) {
+                Layout layout = scan(device, i);
+                if (best == null || layout.bulkEndpointCount() > best.bulkEndpointCount()) {
+                    best = layout;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Walks the endpoints of an interface of the device.
+         */
+        static Layout scan(UsbDevice device, int interfaceIndex) {
+            UsbInterface intf = device.getInterface(interfaceIndex);
+            int count = intf.getEndpointCount();
+            int status = -1;
+            int[] in = new int[count];
+            int[] inSizes = new int[count];
+            int[] out = new int[count];
+            int[] outSizes = new int[count];
+            int ins = 0;
+            int outs = 0;
+            for (int i = 0; i < count; i++) {
+                UsbEndpoint ep = intf.getEndpoint(i);
+                if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_INT) {
+                    if (ep.getDirection() == UsbConstants.USB_DIR_IN && status < 0) {
+                        status = ep.getAddress();
+                    }
+                } else if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                    if (ep.getDirection() == UsbConstants.USB_DIR_OUT) {
+                        out[outs] = ep.getAddress();
+                        outSizes[outs++] = ep.getMaxPacketSize();
+                    } else {
+                        in[ins] = ep.getAddress();
+                        inSizes[ins++] = ep.getMaxPacketSize();
+                    }
+                }
+            }
+            return new Layout(interfaceIndex, status, trim(in, ins), trim(inSizes, ins),
+                    trim(out, outs), trim(outSizes, outs));
+        }
+
+        int bulkEndpointCount() {
+            return bulkIn.length + bulkOut.length;
+        }
+
+        private static int[] trim(int[] values, int count) {
+            int[] trimmed = new int[count];
+            System.arraycopy(values, 0, trimmed, 0, count);
+            return trimmed;
+        }
+    }
+
+    private final DeviceFilter mFilter;
+    // One slot per entry of the filter, filled on first sight.
+    private final AtomicReferenceArray<Layout> mLayouts;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    DescriptorCache(DeviceFilter filter) {
+        mFilter = filter;
+        mLayouts = new AtomicReferenceArray<Layout>(filter.size());
+    }
+
+    /**
+     * @return the layout of the device, or null if it is not in the filter
+     *         or has no interface.
+     */
+    Layout get(UsbDevice device) {
+        int index = mFilter.indexOf(device.getVendorId(), device.getProductId());
+        if (index < 0) {
+            return null;
+        }
+        Layout layout = mLayouts.get(index);
+        if (layout != null) {
+            mHits.incrementAndGet();
+            return layout;
+        }
+        layout = Layout.scan(device);
+        if (layout == null) {
+            return null;
+        }
+        mMisses.incrementAndGet();
+        // Two threads may scan the same device at once, both get the same
+        // answer and either one is kept.
+        mLayouts.compareAndSet(index, null, layout);
+        return mLayouts.get(index);
+    }
+
+    /**
+     * Forgets the layout of the device, for example after a firmware update
+     * changed it.
+     */
+    void invalidate(int vendorId, int productId) {
+        int index = mFilter.indexOf(vendorId, productId);
+        if (index >= 0) {
+            mLayouts.set(index, null);
+        }
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+}
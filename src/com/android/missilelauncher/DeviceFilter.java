@@ -0,0 +1,107 @@
+
+package com.android.missilelauncher;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.content.Context;
+import android.content.res.XmlResourceParser;
+import android.hardware.usb.UsbDevice;
+
+/**
+ * The vendor and product IDs of the devices we drive, read from the same
+ * resource the manifest filters the attach intents with.
+ */
+final class DeviceFilter {
+    // Vendor ID in the high half, product ID in the low half, sorted.
+    private final long[] mIds;
+
+    DeviceFilter(long[] ids) {
+        mIds = ids.clone();
+        Arrays.sort(mIds);
+    }
+
+    /**
+     * @return a filter with just the one device.
+     */
+    static DeviceFilter of(int vendorId, int productId) {
+        return new DeviceFilter(new long[] {
+            key(vendorId, productId)
+        });
+    }
+
+    /**
+     * Reads the usb-device entries of an xml resource such as
+     * R.xml.device_filter.
+     */
+    static DeviceFilter fromResource(Context context, int resId) {
+        XmlResourceParser parser = context.getResources().getXml(resId);
+        long[] ids = new long[8];
+        int count = 0;
+        try {
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT;
+                    event = parser.next()) {
+                if (event != XmlPullParser.START_TAG || !"usb-device".equals(parser.getName())) {
+                    continue;
+                }
+                String vendorId = parser.getAttributeValue(null, "vendor-id");
+                String productId = parser.getAttributeValue(null, "product-id");
+                if (vendorId == null || productId == null) {
+                    continue;
+                }
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                ids[count++] = key(Integer.parseInt(vendorId), Integer.parseInt(productId));
+            }
+        } catch (XmlPullParserException e) {
+            throw new IllegalStateException("Bad device filter", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read device filter", e);
+        } finally {
+            parser.close();
+        }
+        return new DeviceFilter(Arrays.copyOf(ids, count));
+    }
+
+    boolean matches(int vendorId, int productId) {
+        return indexOf(vendorId, productId) >= 0;
+    }
+
+    /**
+     * @return position of the IDs in the filter, a number from 0 to size()
+     *         - 1, or a negative number if they do not match.
+     */
+    int indexOf(int vendorId, int productId) {
+        return Arrays.binarySearch(mIds, key(vendorId, productId));
+    }
+
+    int size() {
+        return mIds.length;
+    }
+
+    /**
+     * @return a filter with the same devices but the given one.
+     */
+    DeviceFilter without(int vendorId, int productId) {
+        int index = indexOf(vendorId, productId);
+        if (index < 0) {
+            return this;
+        }
+        long[] ids = new long[mIds.length - 1];
+        System.arraycopy(mIds, 0, ids, 0, index);
+        System.arraycopy(mIds, index + 1, ids, index, ids.length - index);
+        return new DeviceFilter(ids);
+    }
+
+    boolean matches(UsbDevice device) {
+        return matches(device.getVendorId(), device.getProductId());
+    }
+
+    private static long key(int vendorId, int productId) {
+        return ((long) vendorId << 32) | (productId & 0xffffffffL);
+    }
+}
@@ -0,0 +1,303 @@
+
+package com.android.missilelauncher;
+
+import java.io.IOException;
+
+/**
+ * Writes to all the bulk OUT endpoints at the same time. Every endpoint has
+ * a thread of its own, so a transfer takes as long as the slowest endpoint
+ * instead of the sum of all of them.
+ * <p>
+ * A broadcast sends the same bytes to every endpoint and is reported once a
+ * quorum of them wrote everything. A stripe splits one payload across the
+ * endpoints so their bandwidth adds up.
+ */
+final class FanOutWriter implements UsbWriter.Sink {
+
+    // Quorum that waits for every endpoint.
+    static final int ALL = 0;
+
+    /**
+     * Performs the transfer on one endpoint, called on that endpoint's
+     * thread.
+     */
+    interface EndpointWriter {
+        /**
+         * @return number of bytes written, or -1 on failure.
+         */
+        int write(int endpointAddress, byte[] buffer, int length);
+    }
+
+    private final EndpointWriter mWriter;
+    private final Worker[] mWorkers;
+    private volatile boolean mStopped;
+
+    /**
+     * @param endpoints addresses of the bulk OUT endpoints to write to.
+     * @param maxPacketSizes max packet size of every endpoint.
+     * @param writer performs the transfers.
+     */
+    FanOutWriter(int[] endpoints, int[] maxPacketSizes, EndpointWriter writer) {
+        mWriter = writer;
+        mWorkers = new Worker[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            mWorkers[i] = new Worker(endpoints[i], maxPacketSizes[i]);
+        }
+        for (Worker worker : mWorkers) {
+            worker.thread.start();
+        }
+    }
+
+    int getEndpointCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * @return true if the writer writes to exactly these endpoints, in this
+     *         order and with these packet sizes.
+     */
+    boolean writesTo(int[] endpoints, int[] maxPacketSizes) {
+        if (endpoints.length != mWorkers.length) {
+            return false;
+        }
+        for (int i = 0; i < mWorkers.length; i++) {
+            if (mWorkers[i].endpoint != endpoints[i]
+                    || mWorkers[i].maxPacketSize != maxPacketSizes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the same bytes to every endpoint. The future completes as soon
+     * as quorum endpoints wrote everything, or once all of them finished
+     * without reaching it. Returns when no endpoint uses the buffer anymore.
+     *
+     * @param quorum number of endpoints that must succeed, {@link #ALL} for
+     *            every endpoint.
+     */
+    public void broadcast(byte[] buffer, int length, int quorum, UsbFuture<WriteResult> future) {
+        int count = mWorkers.length;
+        if (count == 0) {
+            future.complete(new WriteResult(0));
+            return;
+        }
+        int needed = quorum <= 0 || quorum > count ? count : quorum;
+        Batch batch = new Batch(count, needed, future);
+        for (int i = 0; i < count; i++) {
+            batch.result.setExpected(i, mWorkers[i].endpoint, length);
+        }
+        for (int i = 0; i < count; i++) {
+            mWorkers[i].submit(batch, i, buffer, length);
+        }
+        batch.await();
+    }
+
+    /**
+     * Splits the payload into contiguous stripes, a multiple of the max
+     * packet size each, and writes one stripe per endpoint. The future
+     * completes once every stripe was written. Returns when no endpoint uses
+     * the buffer anymore.
+     */
+    public void stripe(byte[] buffer, int length, UsbFuture<WriteResult> future) {
+        int count = mWorkers.length;
+        if (count == 0 || length == 0) {
+            WriteResult result = new WriteResult(0);
+            result.setSuccess(count > 0);
+            future.complete(result);
+            return;
+        }
+        int packetSize = 1;
+        for (Worker worker : mWorkers) {
+            packetSize = Math.max(packetSize, worker.maxPacketSize);
+        }
+        int stripeSize = (length + count - 1) / count;
+        stripeSize = (stripeSize + packetSize - 1) / packetSize * packetSize;
+        int stripes = (length + stripeSize - 1) / stripeSize;
+
+        Batch batch = new Batch(stripes, stripes, future);
+        for (int i = 0; i < stripes; i++) {
+            int offset = i * stripeSize;
+            int size = Math.min(stripeSize, length - offset);
+            batch.result.setExpected(i, mWorkers[i].endpoint, size);
+        }
+        for (int i = 0; i < stripes; i++) {
+            int offset = i * stripeSize;
+            int size = Math.min(stripeSize, length - offset);
+            // Transfers cannot start at an offset, so each endpoint gets a
+            // copy of its stripe.
+            byte[] stripe = mWorkers[i].stripeBuffer(size);
+            System.arraycopy(buffer, offset, stripe, 0, size);
+            mWorkers[i].submit(batch, i, stripe, size);
+        }
+        batch.await();
+    }
+
+    /**
+     * Stops the endpoint threads. A transfer that an endpoint has not taken
+     * up yet fails with an IOException, and so do the ones submitted later.
+     */
+    void stop() {
+        mStopped = true;
+        for (Worker worker : mWorkers) {
+            worker.thread.interrupt();
+            worker.failPending();
+        }
+    }
+
+    // Tracks one transfer across the endpoints.
+    private static final class Batch {
+        final WriteResult result;
+        final UsbFuture<WriteResult> future;
+        final int needed;
+        int remaining;
+        int succeeded;
+        boolean reported;
+
+        Batch(int count, int needed, UsbFuture<WriteResult> future) {
+            this.result = new WriteResult(count);
+            this.future = future;
+            this.needed = needed;
+            this.remaining = count;
+        }
+
+        void finished(int index, int written, long nanos) {
+            WriteResult report = null;
+            synchronized (this) {
+                if (remaining == 0) {
+                    // Failed while this endpoint was writing.
+                    return;
+                }
+                result.setWritten(index, written, nanos);
+                remaining--;
+                if (written == result.getBytesExpected(index)) {
+                    succeeded++;
+                }
+                if (!reported && (succeeded >= needed || remaining == 0)) {
+                    reported = true;
+                    result.setSuccess(succeeded >= needed);
+                    // Endpoints that are still writing keep updating the
+                    // result, so hand out a copy.
+                    report = remaining == 0 ? result : result.snapshot();
+                }
+                if (remaining == 0) {
+                    notifyAll();
+                }
+            }
+            if (report != null) {
+                future.complete(report);
+            }
+        }
+
+        // Gives up on the endpoints that did not finish yet.
+        void fail(IOException error) {
+            boolean report;
+            synchronized (this) {
+                report = !reported;
+                reported = true;
+                remaining = 0;
+                notifyAll();
+            }
+            if (report) {
+                future.fail(error);
+            }
+        }
+
+        synchronized void await() {
+            try {
+                while (remaining > 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final int endpoint;
+        final int maxPacketSize;
+        final Thread thread;
+        private byte[] mStripe = new byte[0];
+        private Batch mBatch;
+        private int mIndex;
+        private byte[] mBuffer;
+        private int mLength;
+
+        Worker(int endpoint, int maxPacketSize) {
+            this.endpoint = endpoint;
+            this.maxPacketSize = maxPacketSize;
+            thread = new Thread(this, "HidBridge-EP" + endpoint + "-writer");
+            thread.setDaemon(true);
+        }
+
+        byte[] stripeBuffer(int size) {
+            if (mStripe.length < size) {
+                mStripe = new byte[size];
+            }
+            return mStripe;
+        }
+
+        synchronized void submit(Batch batch, int index, byte[] buffer, int length) {
+            if (mStopped) {
+                batch.fail(new IOException("Writer is stopped"));
+                return;
+            }
+            mBatch = batch;
+            mIndex = index;
+            mBuffer = buffer;
+            mLength = length;
+            notifyAll();
+        }
+
+        public void run() {
+            while (true) {
+                Batch batch;
+                int index;
+                byte[] buffer;
+                int length;
+                synchronized (this) {
+                    try {
+                        while (mBatch == null) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        failPending();
+                        return;
+                    }
+                    batch = mBatch;
+                    index = mIndex;
+                    buffer = mBuffer;
+                    length = mLength;
+                    mBatch = null;
+                    mBuffer = null;
+                }
+
+                long start = System.nanoTime();
+                int written;
+                try {
+                    written = mWriter.write(endpoint, buffer, length);
+                } catch (RuntimeException e) {
+                    // The connection went away under the write. The worker
+                    // keeps going, or every later batch would wait for it.
+                    written = -1;
+                }
+                batch.finished(index, written, System.nanoTime() - start);
+            }
+        }
+
+        // Fails the transfer this endpoint holds but has not taken up.
+        void failPending() {
+            Batch batch;
+            synchronized (this) {
+                batch = mBatch;
+                mBatch = null;
+                mBuffer = null;
+            }
+            if (batch != null) {
+                batch.fail(new IOException("Writer is stopped"));
+            }
+        }
+    }
+}
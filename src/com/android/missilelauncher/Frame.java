@@ -0,0 +1,192 @@
+
+package com.android.missilelauncher;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message cut out of the received byte stream by a {@link FrameDecoder}.
+ * The frame is a view of the packets it was received in, one segment per
+ * packet, so nothing is copied until the consumer asks for it. The owner
+ * must call {@link #release()} once it is done with the frame, which
+ * releases the packets. Like a packet, a frame can have several owners that
+ * {@link #retain()} it.
+ */
+public final class Frame implements ReceivedData {
+    private final FrameDecoder mDecoder;
+    private Packet[] mPackets = new Packet[2];
+    private int[] mOffsets = new int[2];
+    private int[] mLengths = new int[2];
+    private int mSegments;
+    private int mLength;
+    private int mEndpointAddress;
+    private final AtomicInteger mReferences = new AtomicInteger();
+
+    Frame(FrameDecoder decoder) {
+        mDecoder = decoder;
+    }
+
+    /**
+     * @return address of the endpoint the frame was read from.
+     */
+    public int getEndpointAddress() {
+        return mEndpointAddress;
+    }
+
+    /**
+     * @return number of bytes in the frame.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return number of packets the frame spans.
+     */
+    public int getSegmentCount() {
+        return mSegments;
+    }
+
+    /**
+     * @return the packet holding the given segment. Its bytes from
+     *         {@link #getSegmentOffset(int)} on are part of the frame.
+     */
+    public Packet getSegmentPacket(int segment) {
+        checkSegment(segment);
+        return mPackets[segment];
+    }
+
+    public int getSegmentOffset(int segment) {
+        checkSegment(segment);
+        return mOffsets[segment];
+    }
+
+    public int getSegmentLength(int segment) {
+        checkSegment(segment);
+        return mLengths[segment];
+    }
+
+    /**
+     * @return the byte at the given index of the frame.
+     */
+    public byte get(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        int segment = 0;
+        while (index >= mLengths[segment]) {
+            index -= mLengths[segment++];
+        }
+        return mPackets[segment].get(mOffsets[segment] + index);
+    }
+
+    /**
+     * Copies the frame into the given array.
+     *
+     * @return number of bytes copied.
+     */
+    public int copyTo(byte[] destination, int offset) {
+        if (offset < 0 || offset + mLength > destination.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + mLength);
+        }
+        for (int i = 0; i < mSegments; i++) {
+            // Absolute reads, a packet may be shared with a frame that is
+            // read on another thread.
+            ByteBuffer buffer = mPackets[i].rawBuffer();
+            int base = mOffsets[i];
+            for (int j = 0; j < mLengths[i]; j++) {
+                destination[offset++] = buffer.get(base + j);
+            }
+        }
+        return mLength;
+    }
+
+    /**
+     * @return a copy of the frame.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[mLength];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Adds an owner, who must call {@link #release()} too.
+     */
+    public void retain() {
+        if (mReferences.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame retained after its release");
+        }
+    }
+
+    /**
+     * Once every owner released the frame, releases its packets and hands
+     * the frame back to its decoder.
+     */
+    public void release() {
+        int references = mReferences.decrementAndGet();
+        if (references == 0) {
+            clear();
+            mDecoder.recycle(this);
+        } else if (references < 0) {
+            throw new IllegalStateException("Frame released twice");
+        }
+    }
+
+    // Handed out by the decoder to a single owner.
+    void acquired() {
+        mReferences.set(1);
+    }
+
+    // Adds bytes of a packet to the end of the frame, retaining the packet.
+    void append(Packet packet, int offset, int length) {
+        if (mSegments == mPackets.length) {
+            int capacity = mSegments * 2;
+            mPackets = Arrays.copyOf(mPackets, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mLengths = Arrays.copyOf(mLengths, capacity);
+        }
+        packet.retain();
+        mEndpointAddress = packet.getEndpointAddress();
+        mPackets[mSegments] = packet;
+        mOffsets[mSegments] = offset;
+        mLengths[mSegments++] = length;
+        mLength += length;
+    }
+
+    // Cuts bytes off both ends, such as a length prefix or a delimiter.
+    // Segments left empty stay in place.
+    void trim(int head, int tail) {
+        head = Math.min(head, mLength);
+        tail = Math.min(tail, mLength - head);
+        mLength -= head + tail;
+        for (int i = 0; i < mSegments && head > 0; i++) {
+            int cut = Math.min(head, mLengths[i]);
+            mOffsets[i] += cut;
+            mLengths[i] -= cut;
+            head -= cut;
+        }
+        for (int i = mSegments - 1; i >= 0 && tail > 0; i--) {
+            int cut = Math.min(tail, mLengths[i]);
+            mLengths[i] -= cut;
+            tail -= cut;
+        }
+    }
+
+    // Releases the packets, leaving an empty frame.
+    void clear() {
+        for (int i = 0; i < mSegments; i++) {
+            mPackets[i].release();
+            mPackets[i] = null;
+        }
+        mSegments = 0;
+        mLength = 0;
+    }
+
+    private void checkSegment(int segment) {
+        if (segment < 0 || segment >= mSegments) {
+            throw new IndexOutOfBoundsException("segment " + segment + ", count " + mSegments);
+        }
+    }
+}
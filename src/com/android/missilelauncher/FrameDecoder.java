@@ -0,0 +1,371 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Cuts the byte stream of one endpoint into messages as the packets come
+ * in. The {@link Framing} decides where a message starts and ends; the
+ * decoder keeps the packets a message spans and hands it on as a
+ * {@link Frame} that is a view of them, so a message costs one pass over its
+ * bytes and no copies however many packets it spans.
+ * <p>
+ * Not thread safe, a decoder is fed by a single reader thread. Frames may be
+ * released on any thread.
+ */
+public final class FrameDecoder {
+
+    /**
+     * Receives the decoded frames. The sink owns the frame and must release
+     * it.
+     */
+    public interface Sink {
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * Finds the ends of the messages in the stream. A framing keeps the
+     * parse state of one stream, {@link #newInstance()} makes another one
+     * for the next stream.
+     */
+    public abstract static class Framing {
+        /** The bytes belong to a message that goes on in the next packet. */
+        static final int MORE = 0;
+        /** The bytes end a message. */
+        static final int FRAME = 1;
+        /** The message is broken, it and the bytes are dropped. */
+        static final int ERROR = 2;
+        /** The bytes are not part of any message. */
+        static final int SKIP = 3;
+
+        // Number of bytes the last call to scan() took.
+        int mConsumed;
+
+        /**
+         * Takes bytes from the given range of the packet, up to the end of
+         * the message at most, and says what they were. Sets mConsumed.
+         *
+         * @return MORE, FRAME, ERROR or SKIP.
+         */
+        abstract int scan(Packet packet, int offset, int length);
+
+        /**
+         * @return bytes at the start of a message that are not part of it,
+         *         such as its length.
+         */
+        abstract int headerLength();
+
+        /**
+         * @return bytes at the end of a message that are not part of it,
+         *         such as its delimiter.
+         */
+        abstract int trailerLength();
+
+        /**
+         * Forgets the message in progress.
+         */
+        abstract void reset();
+
+        /**
+         * @return a framing with the same settings and no state.
+         */
+        public abstract Framing newInstance();
+    }
+
+    // Frames kept around for reuse.
+    private static final int SPARE_FRAMES = 16;
+
+    private final Framing mFraming;
+    private final Sink mSink;
+    private final ArrayBlockingQueue<Frame> mSpare = new ArrayBlockingQueue<Frame>(SPARE_FRAMES);
+    // The message being received, null between messages.
+    private Frame mCurrent;
+    private volatile long mFrames;
+    private volatile long mErrors;
+    private volatile long mPartial;
+    private volatile long mReassembled;
+    private volatile long mSkippedBytes;
+
+    public FrameDecoder(Framing framing, Sink sink) {
+        mFraming = framing;
+        mSink = sink;
+    }
+
+    /**
+     * Cuts the packet into frames. Takes over the packet, which is released
+     * once the frames that use it are.
+     */
+    public void decode(Packet packet) {
+        int offset = 0;
+        int length = packet.getLength();
+        try {
+            while (offset < length) {
+                int result = mFraming.scan(packet, offset, length - offset);
+                int consumed = mFraming.mConsumed;
+                switch (result) {
+                    case Framing.MORE:
+                    case Framing.FRAME:
+                        if (mCurrent == null) {
+                            mCurrent = obtain();
+                        }
+                        if (consumed > 0) {
+                            mCurrent.append(packet, offset, consumed);
+                        }
+                        if (result == Framing.FRAME) {
+                            deliver();
+                        }
+                        break;
+                    case Framing.ERROR:
+                        mErrors++;
+                        drop();
+                        break;
+                    default:
+                        mSkippedBytes += consumed;
+                        break;
+                }
+                offset += consumed;
+            }
+            if (mCurrent != null && mCurrent.getSegmentCount() > 0) {
+                // The message goes on in the next packet.
+                mPartial++;
+            }
+        } finally {
+            packet.release();
+        }
+    }
+
+    /**
+     * Drops the message in progress, for example when the stream starts
+     * over after a reconnect.
+     */
+    public void reset() {
+        if (mCurrent != null && mCurrent.getSegmentCount() > 0) {
+            mErrors++;
+        }
+        drop();
+        mFraming.reset();
+    }
+
+    /**
+     * @return number of frames handed to the sink.
+     */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return number of messages dropped as broken, or cut short by a
+     *         reset.
+     */
+    public long getErrorCount() {
+        return mErrors;
+    }
+
+    /**
+     * @return number of packets that ended in the middle of a message.
+     */
+    public long getPartialFrameCount() {
+        return mPartial;
+    }
+
+    /**
+     * @return number of frames that spanned more than one packet.
+     */
+    public long getReassembledCount() {
+        return mReassembled;
+    }
+
+    /**
+     * @return number of bytes that were not part of any message.
+     */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    void recycle(Frame frame) {
+        mSpare.offer(frame);
+    }
+
+    private Frame obtain() {
+        Frame frame = mSpare.poll();
+        if (frame == null) {
+            frame = new Frame(this);
+        }
+        frame.acquired();
+        return frame;
+    }
+
+    private void deliver() {
+        Frame frame = mCurrent;
+        mCurrent = null;
+        if (frame.getSegmentCount() > 1) {
+            mReassembled++;
+        }
+        frame.trim(mFraming.headerLength(), mFraming.trailerLength());
+        mFrames++;
+        mSink.onFrame(frame);
+    }
+
+    private void drop() {
+        if (mCurrent != null) {
+            mCurrent.release();
+            mCurrent = null;
+        }
+    }
+
+    /**
+     * Messages that start with their length as an unsigned integer.
+     *
+     * @param prefixLength bytes of the length, 1, 2 or 4.
+     * @param bigEndian true if the most significant byte comes first.
+     * @param includesPrefix true if the length counts the prefix too.
+     * @param maxLength longest message, longer ones are errors.
+     */
+    public static Framing lengthPrefixed(int prefixLength, boolean bigEndian,
+            boolean includesPrefix, int maxLength) {
+        if (prefixLength != 1 && prefixLength != 2 && prefixLength != 4) {
+            throw new IllegalArgumentException("prefixLength must be 1, 2 or 4");
+        }
+        return new LengthPrefixed(prefixLength, bigEndian, includesPrefix, maxLength);
+    }
+
+    /**
+     * Messages that end with a delimiter byte, which is not part of the
+     * frame.
+     *
+     * @param maxLength longest message, longer ones are errors and are
+     *            skipped up to the next delimiter.
+     */
+    public static Framing delimited(byte delimiter, int maxLength) {
+        return new Delimited(delimiter, maxLength);
+    }
+
+    private static final class LengthPrefixed extends Framing {
+        private final int mPrefixLength;
+        private final boolean mBigEndian;
+        private final boolean mIncludesPrefix;
+        private final int mMaxLength;
+        private int mPrefixRead;
+        private long mLength;
+        private int mRemaining;
+
+        LengthPrefixed(int prefixLength, boolean bigEndian, boolean includesPrefix,
+                int maxLength) {
+            mPrefixLength = prefixLength;
+            mBigEndian = bigEndian;
+            mIncludesPrefix = includesPrefix;
+            mMaxLength = maxLength;
+        }
+
+        @Override
+        int scan(Packet packet, int offset, int length) {
+            int i = 0;
+            while (mPrefixRead < mPrefixLength && i < length) {
+                long b = packet.get(offset + i++) & 0xff;
+                mLength = mBigEndian ? (mLength << 8) | b : mLength | (b << (8 * mPrefixRead));
+                if (++mPrefixRead == mPrefixLength) {
+                    long body = mIncludesPrefix ? mLength - mPrefixLength : mLength;
+                    if (body < 0 || body > mMaxLength) {
+                        // Nothing tells where the next message starts, give up
+                        // on the rest of the packet.
+                        mConsumed = length;
+                        reset();
+                        return ERROR;
+                    }
+                    mRemaining = (int) body;
+                }
+            }
+            if (mPrefixRead < mPrefixLength) {
+                mConsumed = i;
+                return MORE;
+            }
+            int take = Math.min(mRemaining, length - i);
+            mRemaining -= take;
+            mConsumed = i + take;
+            if (mRemaining > 0) {
+                return MORE;
+            }
+            reset();
+            return FRAME;
+        }
+
+        @Override
+        int headerLength() {
+            return mPrefixLength;
+        }
+
+        @Override
+        int trailerLength() {
+            return 0;
+        }
+
+        @Override
+        void reset() {
+            mPrefixRead = 0;
+            mLength = 0;
+            mRemaining = 0;
+        }
+
+        @Override
+        public Framing newInstance() {
+            return new LengthPrefixed(mPrefixLength, mBigEndian, mIncludesPrefix, mMaxLength);
+        }
+    }
+
+    private static final class Delimited extends Framing {
+        private final byte mDelimiter;
+        private final int mMaxLength;
+        private int mLength;
+        // Skipping the rest of a message that was too long.
+        private boolean mDiscarding;
+
+        Delimited(byte delimiter, int maxLength) {
+            mDelimiter = delimiter;
+            mMaxLength = maxLength;
+        }
+
+        @Override
+        int scan(Packet packet, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                if (packet.get(offset + i) == mDelimiter) {
+                    mConsumed = i + 1;
+                    if (mDiscarding) {
+                        mDiscarding = false;
+                        return SKIP;
+                    }
+                    mLength = 0;
+                    return FRAME;
+                }
+                if (!mDiscarding && ++mLength > mMaxLength) {
+                    mConsumed = i + 1;
+                    mDiscarding = true;
+                    mLength = 0;
+                    return ERROR;
+                }
+            }
+            mConsumed = length;
+            return mDiscarding ? SKIP : MORE;
+        }
+
+        @Override
+        int headerLength() {
+            return 0;
+        }
+
+        @Override
+        int trailerLength() {
+            return 1;
+        }
+
+        @Override
+        void reset() {
+            mLength = 0;
+            mDiscarding = false;
+        }
+
+        @Override
+        public Framing newInstance() {
+            return new Delimited(mDelimiter, mMaxLength);
+        }
+    }
+}
@@ -1,10 +1,17 @@
 
 package com.android.missilelauncher;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
@@ -13,11 +20,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
-import android.os.AsyncTask;
+import android.os.Handler;
 import android.util.Log;
 
 public class HidBridge {
@@ -25,8 +31,6 @@ public class HidBridge {
     private int _productId;
     private int _vendorId;
 
-    // Can be used for debugging.
-    @SuppressWarnings("unused")
     private static final String ACTION_USB_PERMISSION =
             "com.example.company.app.testhid.USB_PERMISSION";
 
@@ -36,11 +40,96 @@ public class HidBridge {
     private String _deviceName;
 
     private UsbManager _usbManager;
-    private UsbDevice _usbDevice;
+    private volatile UsbDevice _usbDevice;
+    // Endpoints of _usbDevice, known devices skip the walk over them.
+    private final DescriptorCache _descriptors;
+    private DescriptorCache.Layout _layout;
+    private boolean _receiverRegistered;
+    private volatile boolean _permissionRequested;
+    // Futures of OpenDeviceAsync() waiting for the permission or the
+    // interface, guarded by itself.
+    private final List<UsbFuture<Void>> _openFutures = new ArrayList<UsbFuture<Void>>();
+    // The connection shared by the reader and the writers.
+    private UsbSession _session;
+    private final Object _sessionLock = new Object();
+    // Sends the queued writes, started on the first write and built again
+    // when a session comes up with other bulk OUT endpoints.
+    private UsbWriter _writer;
+    private FanOutWriter _fanOut;
+    private static final int WRITE_TIMEOUT_MS = 1000;
+    // How long WriteData() waits for the writes queued before it and its own.
+    private static final long WRITE_DATA_TIMEOUT_MS = 5000;
     public UsbEndpoint[] BulkInEndpoint = new UsbEndpoint[2];
     public UsbEndpoint[] BulkOutEndpoint = new UsbEndpoint[2];
-    // The queue that contains the read data.
-    private Queue<byte[]> _receivedQueue;
+    // Addresses and max packet sizes of the bulk endpoints in use.
+    private int[] _inEndpoints = new int[0];
+    private int[] _inPacketSizes = new int[0];
+    private int[] _outEndpoints = new int[0];
+    private int[] _outPacketSizes = new int[0];
+    // The queue that contains the read data. Written by the reader threads
+    // and drained by the consumer, dropped packets go back to their pool.
+    private BoundedQueue<Packet> _receivedQueue;
+    // With a framing set, the packets are cut into messages that wait here
+    // instead, one decoder per bulk IN endpoint number.
+    private final BoundedQueue<Frame> _frameQueue;
+    private volatile FrameDecoder.Framing _framing;
+    private volatile Decoders _decoders = new Decoders(null);
+    private final Object _decodersLock = new Object();
+    // The decoder every reader used last, by endpoint number. Only touched
+    // by the reader of the endpoint, or by the connection thread while no
+    // reader runs.
+    private final FrameDecoder[] _readerDecoders = new FrameDecoder[16];
+    // Push the packets, or the messages with a framing set, to the
+    // subscribers. While there are any, nothing goes to the queues.
+    private final Publisher<Packet> _packetPublisher = new Publisher<Packet>(
+            new Publisher.Items<Packet>() {
+                public void retain(Packet packet) {
+                    packet.retain();
+                }
+
+                public void recycle(Packet packet) {
+                    packet.release();
+                }
+
+                public int endpointOf(Packet packet) {
+                    return packet.getEndpointAddress();
+                }
+            });
+    private final Publisher<Frame> _framePublisher = new Publisher<Frame>(
+            new Publisher.Items<Frame>() {
+                public void retain(Frame frame) {
+                    frame.retain();
+                }
+
+                public void recycle(Frame frame) {
+                    frame.release();
+                }
+
+                public int endpointOf(Frame frame) {
+                    return frame.getEndpointAddress();
+                }
+            });
+    private Executor _mainThreadExecutor;
+    // Sends the commands of the request pipelines.
+    private final RequestPipeline.Sender _pipelineSender = new RequestPipeline.Sender() {
+        public UsbFuture<WriteResult> send(byte[] request) {
+            return WriteDataAsync(request);
+        }
+    };
+    // Buffers the readers receive into, recycled by the consumers.
+    private PacketPool _receivePool;
+    private static final int RECEIVE_QUEUE_CAPACITY = 64;
+    // Packets a consumer may hold on to on top of the queued ones.
+    private static final int RECEIVE_POOL_SPARE = 8;
+    // Formats and writes the log lines off the I/O threads.
+    private final UsbLog _log;
+    // Traffic and latency of the device, by device name.
+    private volatile MetricsRegistry _metrics = new MetricsRegistry();
+    // Name the metrics of a transport given to UseTransport() are kept under.
+    private static final String TRANSPORT_NAME = "HidBridge";
+    // The running capture, and the transport of the session it records.
+    private volatile TrafficCapture _capture;
+    private CaptureTransport _captureTransport;
 
     /**
      * Creates a hid bridge to the dongle. Should be created once.
@@ -53,7 +142,21 @@ public class HidBridge {
         _context = context;
         _productId = productId;
         _vendorId = vendorId;
-        _receivedQueue = new LinkedList<byte[]>();
+        _descriptors = new DescriptorCache(DeviceFilter.of(vendorId, productId));
+        _receivedQueue = new BoundedQueue<Packet>(RECEIVE_QUEUE_CAPACITY,
+                BoundedQueue.OverflowPolicy.DROP_OLDEST, new BoundedQueue.Recycler<Packet>() {
+                    public void recycle(Packet packet) {
+                        packet.release();
+                    }
+                });
+        _frameQueue = new BoundedQueue<Frame>(RECEIVE_QUEUE_CAPACITY,
+                BoundedQueue.OverflowPolicy.DROP_OLDEST, new BoundedQueue.Recycler<Frame>() {
+                    public void recycle(Frame frame) {
+                        frame.release();
+                    }
+                });
+        _log = new UsbLog("HidBridge", _logSink, UsbLog.DEFAULT_CAPACITY);
+        _log.start();
     }
 
     /**
@@ -62,422 +165,1021 @@ public class HidBridge {
      * @return true, if connection was successful
      */
     public boolean OpenDevice() {
+        _log.start();
         _usbManager = (UsbManager) _context.getSystemService(Context.USB_SERVICE);
+        registerReceiver();
 
-        HashMap<String, UsbDevice> deviceList = _usbManager.getDeviceList();
+        if (!findDevice()) {
+            Log("Cannot find the device. Did you forgot to plug it?");
+            Log(String.format("\t I search for VendorId: %s and ProductId: %s", _vendorId,
+                    _productId));
+            return false;
+        }
+
+        if (!_usbManager.hasPermission(_usbDevice)) {
+            requestPermission();
+        }
+        Log("Found the device");
+        return true;
+    }
 
-        Iterator<UsbDevice> deviceIterator = deviceList.values().iterator();
-        _usbDevice = null;
+    /**
+     * Like OpenDevice(), but goes on until the device can be talked to. The
+     * future completes once the permission is granted and the interface is
+     * claimed, so the reading thread and the writes can be chained onto it
+     * with then(). It fails right away if the device is not attached, and as
+     * soon as the user denies the permission or the device is unplugged.
+     */
+    public UsbFuture<Void> OpenDeviceAsync() {
+        UsbFuture<Void> future = new UsbFuture<Void>();
+        // Registered before asking, so the answer cannot slip past it.
+        synchronized (_openFutures) {
+            _openFutures.add(future);
+        }
+        if (!OpenDevice()) {
+            synchronized (_openFutures) {
+                _openFutures.remove(future);
+            }
+            future.fail(new IOException("Device not found"));
+        } else if (_usbManager.hasPermission(_usbDevice)) {
+            claimInterface();
+        }
+        // Otherwise OpenDevice() asked for the permission and the receiver
+        // takes it from there.
+        return future;
+    }
 
-        // Iterate all the available devices and find ours.
-        while (deviceIterator.hasNext()) {
-            UsbDevice device = deviceIterator.next();
-            if (device.getProductId() == _productId && device.getVendorId() == _vendorId) {
-                _usbDevice = device;
-                _deviceName = _usbDevice.getDeviceName();
+    // Opens the session on an I/O thread for the futures of
+    // OpenDeviceAsync().
+    private void claimInterface() {
+        synchronized (_openFutures) {
+            if (_openFutures.isEmpty()) {
+                return;
+            }
+        }
+        _ioScheduler.start("HidBridge-open", new Runnable() {
+            public void run() {
+                UsbSession session;
+                try {
+                    session = getSession();
+                } catch (SecurityException e) {
+                    deviceMetrics().recordException(e);
+                    failOpens(e);
+                    return;
+                }
+                if (session != null) {
+                    completeOpens();
+                } else {
+                    failOpens(new IOException("Cannot claim the interface"));
+                }
             }
+        });
+    }
+
+    private List<UsbFuture<Void>> takeOpens() {
+        synchronized (_openFutures) {
+            List<UsbFuture<Void>> futures = new ArrayList<UsbFuture<Void>>(_openFutures);
+            _openFutures.clear();
+            return futures;
         }
+    }
 
-        if (_usbDevice == null) {
-            Log("Cannot find the device. Did you forgot to plug it?");
-            Log(String.format("\t I search for VendorId: %s and ProductId: %s", _vendorId,
-                    _productId));
+    private void completeOpens() {
+        for (UsbFuture<Void> future : takeOpens()) {
+            future.complete(null);
+        }
+    }
+
+    private void failOpens(Throwable error) {
+        for (UsbFuture<Void> future : takeOpens()) {
+            future.fail(error);
+        }
+    }
+
+    /**
+     * Looks for our device among the attached ones and takes its bulk
+     * endpoints. Called on every connection attempt, so the device found
+     * before is looked up by name and its endpoints come from the cache.
+     * 
+     * @return true if the device is attached.
+     */
+    private boolean findDevice() {
+        if (_usbManager == null) {
+            return false;
+        }
+        HashMap<String, UsbDevice> deviceList = _usbManager.getDeviceList();
+
+        String name = _deviceName;
+        UsbDevice found = name != null ? deviceList.get(name) : null;
+        if (!isOurs(found)) {
+            found = null;
+            Iterator<UsbDevice> deviceIterator = deviceList.values().iterator();
+
+            // Iterate all the available devices and find ours.
+            while (deviceIterator.hasNext()) {
+                UsbDevice device = deviceIterator.next();
+                if (isOurs(device)) {
+                    found = device;
+                    break;
+                }
+            }
+        }
+
+        if (found == null) {
             return false;
-        } else {
-            int i = 0;
-            int j = 0;
-            int k = 0;
-            for (i = 0; i < _usbDevice.getInterface(0).getEndpointCount(); i++) {
-                UsbEndpoint ep = _usbDevice.getInterface(0).getEndpoint(i);
-                // look for bulk endpoint
-                if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
-                    if (ep.getDirection() == UsbConstants.USB_DIR_OUT) {
+        }
+        DescriptorCache.Layout layout = _descriptors.get(found);
+        if (layout == null) {
+            Log("The device has no interface");
+            return false;
+        }
+        synchronized (_sessionLock) {
+            if (layout != _layout || !found.equals(_usbDevice)) {
+                takeEndpoints(found, layout);
+            }
+            _usbDevice = found;
+            _deviceName = found.getDeviceName();
+            _layout = layout;
+            _inEndpoints = layout.bulkIn;
+            _inPacketSizes = layout.bulkInPacketSizes;
+            _outEndpoints = layout.bulkOut;
+            _outPacketSizes = layout.bulkOutPacketSizes;
+        }
+        return true;
+    }
+
+    // Fills BulkInEndpoint and BulkOutEndpoint for a new device or layout.
+    private void takeEndpoints(UsbDevice device, DescriptorCache.Layout layout) {
+        UsbInterface intf = device.getInterface(layout.interfaceIndex);
+        int j = 0;
+        int k = 0;
+        for (int i = 0; i < intf.getEndpointCount(); i++) {
+            UsbEndpoint ep = intf.getEndpoint(i);
+            // look for bulk endpoint
+            if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                if (ep.getDirection() == UsbConstants.USB_DIR_OUT) {
+                    if (j < BulkOutEndpoint.length) {
                         BulkOutEndpoint[j++] = ep;
-                    } else {
-                        BulkInEndpoint[k++] = ep;
                     }
+                } else if (k < BulkInEndpoint.length) {
+                    BulkInEndpoint[k++] = ep;
                 }
             }
         }
+    }
 
+    private boolean isOurs(UsbDevice device) {
+        return device != null && device.getProductId() == _productId
+                && device.getVendorId() == _vendorId;
+    }
+
+    // Asks for the permission once per device, the answer comes to
+    // mUsbReceiver.
+    private void requestPermission() {
+        UsbDevice device = _usbDevice;
+        if (device == null || _permissionRequested) {
+            return;
+        }
+        _permissionRequested = true;
         // Create and intent and request a permission.
         PendingIntent mPermissionIntent = PendingIntent.getBroadcast(_context, 0, new Intent(
                 ACTION_USB_PERMISSION), 0);
+        _usbManager.requestPermission(device, mPermissionIntent);
+    }
+
+    // Listens for the permission and for the device coming and going.
+    private void registerReceiver() {
+        if (_receiverRegistered) {
+            return;
+        }
+        _receiverRegistered = true;
         IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
         _context.registerReceiver(mUsbReceiver, filter);
+    }
 
-        _usbManager.requestPermission(_usbDevice, mPermissionIntent);
-        Log("Found the device");
-        return true;
+    /**
+     * Talks to the device through the given transport instead of the Android
+     * USB host API, for example a SimulatedUsbTransport. Replaces
+     * OpenDevice().
+     * 
+     * @param transport open transport with the interface claimed.
+     * @param inEndpoints addresses of the bulk IN endpoints to read.
+     * @param outEndpoints addresses of the bulk OUT endpoints to write.
+     */
+    public void UseTransport(UsbTransport transport, int[] inEndpoints, int[] outEndpoints) {
+        synchronized (_sessionLock) {
+            _session = new UsbSession(captured(_metrics.wrap(TRANSPORT_NAME, transport)));
+            _inEndpoints = inEndpoints.clone();
+            _outEndpoints = outEndpoints.clone();
+            _inPacketSizes = new int[inEndpoints.length];
+            for (int i = 0; i < inEndpoints.length; i++) {
+                _inPacketSizes[i] = transport.getMaxPacketSize(inEndpoints[i]);
+            }
+            _outPacketSizes = new int[outEndpoints.length];
+            for (int i = 0; i < outEndpoints.length; i++) {
+                _outPacketSizes[i] = transport.getMaxPacketSize(outEndpoints[i]);
+            }
+            discardStaleWriter();
+        }
     }
 
     /**
-     * Closes the reading thread of the device.
+     * Closes the reading thread and the session with the device.
      */
     public void CloseTheDevice() {
+        failOpens(new IOException("Device closed"));
         StopReadingThread();
+        StopCapture();
+        _packetPublisher.complete();
+        _framePublisher.complete();
+        if (_receiverRegistered) {
+            _receiverRegistered = false;
+            _context.unregisterReceiver(mUsbReceiver);
+        }
+        synchronized (_sessionLock) {
+            discardWriter();
+            if (_session != null) {
+                _session.close();
+                _session = null;
+            }
+        }
+        // Started again by the next OpenDevice().
+        _log.stop();
     }
 
     /**
-     * Starts the thread that continuously reads the data from the device.
-     * Should be called in order to be able to talk with the device.
+     * Returns the session with the device, opening it and claiming the
+     * interface on first use. The session stays open until CloseTheDevice()
+     * so reads and writes do not pay for the setup on every call.
+     * 
+     * @return the open session, or null if the device cannot be opened.
+     * @throws SecurityException if the user did not grant the permission.
      */
-    MyAsyncTask ep1;
-    MyAsyncTask ep2;
+    private UsbSession getSession() {
+        synchronized (_sessionLock) {
+            if (_session != null && _session.isOpen()) {
+                return _session;
+            }
+            if (_usbDevice == null) {
+                return null;
+            }
+            AndroidUsbTransport transport = AndroidUsbTransport.open(_usbManager, _usbDevice,
+                    _usbDevice.getInterface(_layout.interfaceIndex));
+            _session = transport != null
+                    ? new UsbSession(captured(_metrics.wrap(_deviceName, transport))) : null;
+            if (_session != null) {
+                discardStaleWriter();
+            }
+            return _session;
+        }
+    }
 
-    public void StartReadingThread() {
-        ep1 = new MyAsyncTask();
-        ep1.execute(0);
-        ep2 = new MyAsyncTask();
-        ep2.execute(1);
+    // Puts the transport of a new session behind the capture, under
+    // _sessionLock.
+    private UsbTransport captured(UsbTransport transport) {
+        _captureTransport = new CaptureTransport(transport);
+        _captureTransport.setCapture(_capture);
+        return _captureTransport;
+    }
 
+    /**
+     * Records every transfer to and from the device in the file, across
+     * reconnects, until StopCapture(). Replaces the capture that is running.
+     * 
+     * @return false if the file cannot be created.
+     */
+    public boolean StartCapture(File file) {
+        StopCapture();
+        TrafficCapture capture;
+        try {
+            capture = new TrafficCapture(file, TrafficCapture.DEFAULT_CHUNK_SIZE);
+        } catch (IOException e) {
+            deviceMetrics().recordException(e);
+            Log("Cannot capture to " + file + ": " + e);
+            return false;
+        }
+        synchronized (_sessionLock) {
+            _capture = capture;
+            if (_captureTransport != null) {
+                _captureTransport.setCapture(capture);
+            }
+        }
+        Log("Capturing to " + file);
+        return true;
     }
 
-    private boolean isStopReading = false;
+    /**
+     * Stops recording and completes the capture file.
+     */
+    public void StopCapture() {
+        TrafficCapture capture;
+        synchronized (_sessionLock) {
+            capture = _capture;
+            _capture = null;
+            if (_captureTransport != null) {
+                _captureTransport.setCapture(null);
+            }
+        }
+        if (capture != null) {
+            capture.close();
+            Log("Captured " + capture.getFrameCount() + " frames to " + capture.getFile());
+        }
+    }
 
-    public class MyAsyncTask extends AsyncTask<Integer, Void, Void> {
+    /**
+     * Starts the thread that continuously reads the data from the device.
+     * Should be called in order to be able to talk with the device. The
+     * thread keeps the device connected: it waits for the device and the
+     * permission, and reconnects after the device was unplugged or failed.
+     */
+    public void StartReadingThread() {
+        StopReadingThread();
+        _receivePool = null;
+        _connection = new ConnectionLifecycle(_driver, _connectionListener);
+        _ioScheduler.start("HidBridge-connection", _connection);
+    }
 
-        @Override
-        protected Void doInBackground(Integer... params) {
+    // Connection of the running connection thread, null when there is none.
+    private volatile ConnectionLifecycle _connection;
+    private int _readQueueDepth = BulkInReader.DEFAULT_QUEUE_DEPTH;
+    private volatile IoScheduler _ioScheduler = new IoScheduler(IoScheduler.Mode.MULTIPLEXED,
+            Thread.NORM_PRIORITY);
+    private volatile IoScheduler.Readers _readers;
+    // How long StopReadingThread() waits for the threads to end.
+    private static final long STOP_TIMEOUT_MS = 500;
 
-            if (_usbDevice == null) {
-                Log("No device to read from");
-                return null;
-            }
+    /**
+     * Sets the threads the endpoints are read on, one per endpoint or one
+     * for all of them, and their priority. Takes effect for the reading
+     * thread started next.
+     */
+    public void SetIoScheduler(IoScheduler scheduler) {
+        _ioScheduler = scheduler;
+    }
 
-            UsbDeviceConnection readConnection = null;
-            UsbInterface readIntf = null;
-            boolean readerStartedMsgWasShown = false;
-            if (_usbDevice == null) {
-                OpenDevice();
-                Log("No device. Recheking in 10 sec...");
+    public IoScheduler GetIoScheduler() {
+        return _ioScheduler;
+    }
 
-                Sleep(10000);
-                return null;
-            }
+    /**
+     * @return where the connection with the device is, DETACHED if the
+     *         reading thread is not running.
+     */
+    public ConnectionLifecycle.State GetConnectionState() {
+        ConnectionLifecycle connection = _connection;
+        return connection != null ? connection.getState() : ConnectionLifecycle.State.DETACHED;
+    }
 
-            UsbEndpoint readEp = BulkInEndpoint[params[0]];
-            // if (!_usbManager.getDeviceList().containsKey(_deviceName)) {
-            // Log("Failed to connect to the device. Retrying to acquire it.");
-            // OpenDevice();
-            // if (!_usbManager.getDeviceList().containsKey(_deviceName)) {
-            // Log("No device. Recheking in 10 sec...");
-            //
-            // Sleep(10000);
-            // continue;
-            // }
-            // }
+    /**
+     * @return time from the device being attached or the permission being
+     *         granted to the reader streaming again, -1 if unknown.
+     */
+    public long GetLastReconnectNanos() {
+        ConnectionLifecycle connection = _connection;
+        return connection != null ? connection.getLastReconnectNanos() : -1;
+    }
 
-            try
-            {
+    // The device side of the connection, runs on the connection thread.
+    private final ConnectionLifecycle.Driver _driver = new ConnectionLifecycle.Driver() {
+        public boolean isAttached() {
+            synchronized (_sessionLock) {
+                // A transport given to UseTransport() has no device.
+                if (_session != null && _session.isOpen()) {
+                    return true;
+                }
+            }
+            return findDevice();
+        }
 
-                readConnection = _usbManager.openDevice(_usbDevice);
+        public boolean hasPermission() {
+            UsbDevice device = _usbDevice;
+            return device == null || _usbManager.hasPermission(device);
+        }
 
-                if (readConnection == null) {
-                    Log("Cannot start reader because the user didn't gave me permissions or the device is not present. Retrying in 2 sec...");
-                    Sleep(2000);
-                    return null;
-                }
+        public void requestPermission() {
+            HidBridge.this.requestPermission();
+        }
 
-                // Claim and lock the interface in the android system.
-                readConnection.claimInterface(_usbDevice.getInterface(0), true);
+        public boolean open() {
+            try {
+                return getSession() != null;
             } catch (SecurityException e) {
-                Log("Cannot start reader because the user didn't gave me permissions. Retrying in 2 sec...");
-
-                Sleep(2000);
-                return null;
+                deviceMetrics().recordException(e);
+                Log("Cannot start reader because the user didn't gave me permissions.");
+                return false;
             }
+        }
 
-            // Show the reader started message once.
-            if (!readerStartedMsgWasShown) {
-                Log("!!! Reader was started !!!");
-                readerStartedMsgWasShown = true;
-            }
-
-            // We will continuously ask for the data from the device and store
-            // it in the queue.
-            while (!isStopReading) {
-                // Lock that is common for read/write methods.
-                try
-                {
-
-                    // Read the data as a bulk transfer with the size =
-                    // MaxPacketSize
-                    int packetSize = readEp.getMaxPacketSize();
-                    byte[] bytes = new byte[packetSize];
-                    int r = readConnection.bulkTransfer(readEp, bytes, packetSize, 50);
-                    // Log.e("HidBridge", "bulkTransfer get length = "+r);
-                    if (r >= 0) {
-                        byte[] trancatedBytes = new byte[packetSize]; // Truncate
-                                                                      // bytes
-                                                                      // in the
-                                                                      // honor
-                                                                      // of r
-
-                        int i = 0;
-                        for (byte b : bytes) {
-                            trancatedBytes[i] = b;
-                            i++;
-                        }
-
-                        _receivedQueue.add(trancatedBytes); // Store received
-                                                            // data
-                        Log(String.format("EP:" + readEp.getAddress()
-                                + " Message received of lengths %s and content: %s", r,
-                                composeString(bytes)));
-                    }
-
+        public void stream() {
+            UsbSession session = getSession();
+            if (session == null) {
+                return;
+            }
+            if (_receivePool == null) {
+                // Sized once the endpoints are known, kept across reconnects.
+                // Dedicated threads hold as many packets again.
+                int perEndpoint = _ioScheduler.getMode() == IoScheduler.Mode.DEDICATED
+                        ? 2 * _readQueueDepth : _readQueueDepth;
+                _receivePool = new PacketPool(perEndpoint * Math.max(1, _inEndpoints.length)
+                        + _receivedQueue.capacity() + RECEIVE_POOL_SPARE, maxInPacketSize());
+            }
+            Log("!!! Reader was started !!!");
+            // A message cut off by the reconnect never completes.
+            resetDecoders();
+
+            // Read every endpoint on the threads of the scheduler and store
+            // the packets in the queue until we are asked to stop, or one of
+            // the readers fails.
+            IoScheduler.Readers readers = _ioScheduler.startReaders(session.getTransport(),
+                    _inEndpoints, _readQueueDepth, _receivePool, _readerListener);
+            _readers = readers;
+            try {
+                readers.await();
+            } catch (InterruptedException e) {
+                readers.stop();
+                Thread.currentThread().interrupt();
+            } finally {
+                // A reading thread started meanwhile has readers of its own.
+                if (_readers == readers) {
+                    _readers = null;
                 }
+            }
+        }
 
-                catch (NullPointerException e) {
-                    // Log("Error happened while reading. No device or the connection is busy");
-                    // Log.e("HidBridge", Log.getStackTraceString(e));
-                } catch (ThreadDeath e) {
-                    if (readConnection != null) {
-                        readConnection.releaseInterface(readIntf);
-                        readConnection.close();
-                    }
+        public void close() {
+            IoScheduler.Readers readers = _readers;
+            if (readers != null) {
+                readers.stop();
+            }
+            // The writers open the session again when they need it.
+            synchronized (_sessionLock) {
+                if (_session != null && _usbDevice != null) {
+                    _session.close();
+                    _session = null;
+                }
+            }
+        }
+    };
 
-                    throw e;
+    private final ConnectionLifecycle.Listener _connectionListener =
+            new ConnectionLifecycle.Listener() {
+                public void onStateChanged(ConnectionLifecycle.State previous,
+                        ConnectionLifecycle.State state) {
+                    Log("Connection " + previous + " -> " + state);
                 }
+            };
+
+    // Stores the packets completed by the readers in the queue. Called on
+    // every reader thread at once when each endpoint has its own.
+    private final BulkInReader.Listener _readerListener = new BulkInReader.Listener() {
+        public void onPacketReceived(Packet packet) {
+            // Log before queuing, a consumer may release the packet right away.
+            _log.packet(UsbLog.DEBUG, "Message received", packet);
+            FrameDecoder.Framing framing = _framing;
+            if (framing != null) {
+                decoderFor(framing, packet.getEndpointAddress()).decode(packet);
+                return;
+            }
+            // Back to packets, the message in progress never completes.
+            useDecoder(packet.getEndpointAddress() & 0x0f, null);
+            if (_packetPublisher.hasSubscribers()) {
+                _packetPublisher.publish(packet);
+            } else {
+                _receivedQueue.offer(packet); // Store received data
+            }
+        }
 
-                // Sleep for 10 ms to pause, so other thread can write data or
-                // anything.
-                // As both read and write data methods lock each other - they
-                // cannot be run in parallel.
-                // Looks like Android is not so smart in planning the threads,
-                // so we need to give it a small time
-                // to switch the thread context.
-                Sleep(100);
-            }
-            // Release the interface lock.
-            readConnection.releaseInterface(readIntf);
-            readConnection.close();
-            return null;
+        public void onReaderError(String message) {
+            Log(message);
         }
+    };
 
+    /**
+     * Sets how many read requests are kept queued on every bulk IN endpoint.
+     * Takes effect for readers started afterwards.
+     * 
+     * @param depth number of requests, at least 1.
+     */
+    public void SetReadQueueDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        _readQueueDepth = depth;
     }
 
     /**
      * Stops the thread that continuously reads the data from the device. If it
-     * is stopped - talking to the device would be impossible.
+     * is stopped - talking to the device would be impossible. Returns right
+     * away, so it may be called on the UI thread.
+     * 
+     * @return future that completes once the reading threads ended, with
+     *         false if they did not end in time.
      */
-    @SuppressWarnings("deprecation")
-    public void StopReadingThread() {
-        // if (_readingThread != null) {
-        // // Just kill the thread. It is better to do that fast if we need that
-        // asap.
-        // _readingThread.stop();
-        // _readingThread = null;
-        // } else {
-        // Log("No reading thread to stop");
-        // }
-        isStopReading = true;
+    public UsbFuture<Boolean> StopReadingThread() {
+        ConnectionLifecycle connection = _connection;
+        if (connection == null) {
+            return UsbFuture.completed(Boolean.TRUE);
+        }
+        _connection = null;
+        connection.stop();
+        UsbFuture<Boolean> stopped = _ioScheduler.stopAsync(STOP_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS);
+        stopped.addCallback(_readingStopped);
+        return stopped;
     }
 
+    private final UsbFuture.Callback<Boolean> _readingStopped = new UsbFuture.Callback<Boolean>() {
+        public void onSuccess(Boolean ended) {
+            if (!ended) {
+                Log("Reading threads did not stop in time");
+            } else if (_connection == null) {
+                // Hands back the packets of the messages in progress, unless
+                // a new reading thread uses the decoders already.
+                resetDecoders();
+            }
+        }
+
+        public void onFailure(Throwable error) {
+            Log("Reading threads did not stop: " + error);
+        }
+    };
+
     /**
      * Write data to the usb hid. Data is written as-is, so calling method is
-     * responsible for adding header data.
+     * responsible for adding header data. Blocks until the writer thread has
+     * sent the data, so it should not be called on the UI thread.
      * 
      * @param bytes is the data to be written.
-     * @return true if succeed.
+     * @return true if succeed, false if it failed or was not sent in time.
      */
     public boolean WriteData(byte[] bytes) {
-        try
-        {
-            // Lock that is common for read/write methods.
-            UsbInterface writeIntf = _usbDevice.getInterface(0);
-            UsbDeviceConnection writeConnection = _usbManager.openDevice(_usbDevice);
-
-            // Lock the usb interface.
-            writeConnection.claimInterface(writeIntf, true);
-            for (UsbEndpoint writeEp : BulkOutEndpoint) {
-                int r = writeConnection.bulkTransfer(writeEp, bytes, bytes.length, 0);
+        try {
+            UsbFuture<WriteResult> future = WriteDataAsync(bytes);
+            try {
+                return future.get(WRITE_DATA_TIMEOUT_MS, TimeUnit.MILLISECONDS).isSuccess();
+            } catch (TimeoutException e) {
+                // Still queued behind other writes, it is not sent anymore.
+                future.cancel(false);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (CancellationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queues data for the writer thread and returns immediately. The data
+     * goes to every bulk OUT endpoint in parallel. Small writes that are
+     * pending together are packed into a single transfer.
+     * 
+     * @param bytes is the data to be written, must not be modified until the
+     *            returned future is done.
+     * @return future that completes with the per-endpoint result once every
+     *         endpoint finished.
+     */
+    public UsbFuture<WriteResult> WriteDataAsync(byte[] bytes) {
+        return WriteDataFanOut(bytes, FanOutWriter.ALL);
+    }
+
+    /**
+     * Like WriteDataAsync(), but the future completes as soon as quorum
+     * endpoints wrote everything.
+     * 
+     * @param quorum number of endpoints that must succeed.
+     */
+    public UsbFuture<WriteResult> WriteDataFanOut(byte[] bytes, int quorum) {
+        return getWriter().submit(bytes, quorum);
+    }
+
+    /**
+     * Queues data that is split across the bulk OUT endpoints, one stripe
+     * per endpoint, so their bandwidth adds up. The device has to put the
+     * stripes back together in endpoint order.
+     * 
+     * @return future that completes once every stripe was written.
+     */
+    public UsbFuture<WriteResult> WriteDataStriped(byte[] bytes) {
+        return getWriter().submitStriped(bytes);
+    }
+
+    private UsbWriter getWriter() {
+        synchronized (_sessionLock) {
+            // Written before the device was opened, or the endpoints changed.
+            discardStaleWriter();
+            if (_writer == null) {
+                _fanOut = new FanOutWriter(_outEndpoints, _outPacketSizes, _endpointWriter);
+                _writer = new UsbWriter(_fanOut, maxOutPacketSize(),
+                        UsbWriter.DEFAULT_QUEUE_CAPACITY);
+                _writer.start();
+            }
+            return _writer;
+        }
+    }
+
+    // Drops a writer that was built for other endpoints than the ones in
+    // use, under _sessionLock. Its pending writes fail.
+    private void discardStaleWriter() {
+        if (_writer != null && !_fanOut.writesTo(_outEndpoints, _outPacketSizes)) {
+            discardWriter();
+        }
+    }
+
+    // Under _sessionLock.
+    private void discardWriter() {
+        if (_writer != null) {
+            _writer.stop();
+            _fanOut.stop();
+            _writer = null;
+            _fanOut = null;
+        }
+    }
+
+    // Runs on the thread of each bulk OUT endpoint.
+    private final FanOutWriter.EndpointWriter _endpointWriter = new FanOutWriter.EndpointWriter() {
+        public int write(int writeEp, byte[] bytes, int length) {
+            try
+            {
+                // The session is shared with the reader, so the write costs
+                // only the transfer itself.
+                UsbSession session = getSession();
+                if (session == null) {
+                    Log("Error happend while writing. Could not connect to the device");
+                    return -1;
+                }
+
+                int r = session.bulkWrite(writeEp, bytes, length, WRITE_TIMEOUT_MS);
                 if (r != -1) {
-                    Log(String.format("EP:" + writeEp.getAddress()
-                            + "Written %s bytes to the dongle. Data written: %s", r,
-                            composeString(bytes)));
+                    _log.packet(UsbLog.DEBUG, "Written to the dongle", writeEp, bytes, r);
                 } else {
-                    Log("EP:" + writeEp.getAddress() + "Error happened while writing data. No ACK");
+                    _log.log(UsbLog.ERROR, "Error happened while writing data. No ACK on EP:",
+                            writeEp);
                 }
+                return r;
+            } catch (SecurityException e) {
+                deviceMetrics().recordException(e);
+                Log("Error happend while writing. The user didn't gave me permissions");
+                return -1;
+            } catch (NullPointerException e)
+            {
+                deviceMetrics().recordException(e);
+                Log("Error happend while writing. Could not connect to the device or interface is busy?");
+                Log.e("HidBridge", Log.getStackTraceString(e));
+                return -1;
             }
-            // Write the data as a bulk transfer with defined data length.
+        }
+    };
 
-            // Release the usb interface.
-            writeConnection.releaseInterface(writeIntf);
-            writeConnection.close();
+    // Smallest max packet size of the bulk OUT endpoints.
+    private int maxOutPacketSize() {
+        int size = 0;
+        for (int packetSize : _outPacketSizes) {
+            if (size == 0 || packetSize < size) {
+                size = packetSize;
+            }
+        }
+        return size > 0 ? size : 64;
+    }
 
-        } catch (NullPointerException e)
-        {
-            Log("Error happend while writing. Could not connect to the device or interface is busy?");
-            Log.e("HidBridge", Log.getStackTraceString(e));
-            return false;
+    /**
+     * Records the traffic in the given registry instead of the bridge's own,
+     * for sessions opened afterwards.
+     */
+    public void SetMetricsRegistry(MetricsRegistry metrics) {
+        _metrics = metrics;
+    }
+
+    /**
+     * @return the registry the traffic of the device is recorded in.
+     */
+    public MetricsRegistry GetMetrics() {
+        return _metrics;
+    }
+
+    private UsbMetrics deviceMetrics() {
+        String name = _deviceName;
+        return _metrics.get(name != null ? name : TRANSPORT_NAME);
+    }
+
+    // Stores the messages cut out by the decoders in the queue.
+    private final FrameDecoder.Sink _frameSink = new FrameDecoder.Sink() {
+        public void onFrame(Frame frame) {
+            if (_framePublisher.hasSubscribers()) {
+                _framePublisher.publish(frame);
+            } else {
+                _frameQueue.offer(frame);
+            }
+        }
+    };
+
+    // The decoders of one framing, by bulk IN endpoint number. Replaced as a
+    // whole when the framing changes, a slot is only filled by the reader of
+    // its endpoint.
+    private static final class Decoders {
+        final FrameDecoder.Framing framing;
+        final FrameDecoder[] byEndpoint = new FrameDecoder[16];
+
+        Decoders(FrameDecoder.Framing framing) {
+            this.framing = framing;
+        }
+    }
+
+    // Runs on the reader thread of the endpoint. With DEDICATED readers the
+    // other endpoints are decoded on other threads at the same time, so a
+    // reader only ever touches the decoder of its own endpoint.
+    private FrameDecoder decoderFor(FrameDecoder.Framing framing, int endpointAddress) {
+        int index = endpointAddress & 0x0f;
+        Decoders decoders = _decoders;
+        if (decoders.framing != framing) {
+            // The readers of several endpoints may get here at once, the
+            // first one swaps in the decoders of the new framing.
+            synchronized (_decodersLock) {
+                decoders = _decoders;
+                if (decoders.framing != framing) {
+                    decoders = new Decoders(framing);
+                    _decoders = decoders;
+                }
+            }
+        }
+        FrameDecoder decoder = decoders.byEndpoint[index];
+        if (decoder == null) {
+            decoder = new FrameDecoder(framing.newInstance(), _frameSink);
+            decoders.byEndpoint[index] = decoder;
+        }
+        useDecoder(index, decoder);
+        return decoder;
+    }
+
+    // Starts the stream of the endpoint over when its reader moves to
+    // another decoder, or to none. On the reader thread of the endpoint.
+    private void useDecoder(int index, FrameDecoder decoder) {
+        FrameDecoder last = _readerDecoders[index];
+        if (last != decoder) {
+            if (last != null) {
+                // Releases the packets of the message in progress.
+                last.reset();
+            }
+            _readerDecoders[index] = decoder;
+        }
+    }
+
+    // Only while no reader runs.
+    private void resetDecoders() {
+        for (FrameDecoder decoder : _readerDecoders) {
+            if (decoder != null) {
+                decoder.reset();
+            }
         }
-        return true;
     }
 
     /**
-     * @return true if there are any data in the queue to be read.
+     * Cuts the received data into messages, which may span packets, instead
+     * of handing out the packets as they are. Takes effect from the next
+     * packet on. The messages are read with GetReceivedDataFromQueue() or
+     * GetReceivedFrameFromQueue().
+     * 
+     * @param framing how the messages are delimited, for example
+     *            FrameDecoder.lengthPrefixed(2, true, false, 1024), or null
+     *            to go back to packets.
      */
-    public boolean IsThereAnyReceivedData() {
-        return !_receivedQueue.isEmpty();
+    public void SetFraming(FrameDecoder.Framing framing) {
+        _framing = framing;
     }
 
     /**
-     * Queue the data from the read queue.
+     * Takes the next message from the queue without copying it. The caller
+     * must call {@link Frame#release()} once it is done with it.
      * 
-     * @return queued data.
+     * @return queued message, or null if there is none.
      */
-    public byte[] GetReceivedDataFromQueue() {
-        return _receivedQueue.poll();
+    public Frame GetReceivedFrameFromQueue() {
+        return _frameQueue.poll();
     }
 
-    // The thread that continuously receives data from the dongle and put it to
-    // the queue.
-    private Runnable readerReceiver = new Runnable() {
-        public void run() {
-            if (_usbDevice == null) {
-                Log("No device to read from");
-                return;
+    /**
+     * @return number of messages dropped because they were malformed or cut
+     *         off by a reconnect.
+     */
+    public long GetFramingErrorCount() {
+        long errors = 0;
+        for (FrameDecoder decoder : _decoders.byEndpoint) {
+            if (decoder != null) {
+                errors += decoder.getErrorCount();
             }
+        }
+        return errors;
+    }
 
-            UsbDeviceConnection readConnection = null;
-            UsbInterface readIntf = null;
-            boolean readerStartedMsgWasShown = false;
+    /**
+     * @return number of packets that ended in the middle of a message.
+     */
+    public long GetPartialFrameCount() {
+        long partial = 0;
+        for (FrameDecoder decoder : _decoders.byEndpoint) {
+            if (decoder != null) {
+                partial += decoder.getPartialFrameCount();
+            }
+        }
+        return partial;
+    }
 
-            // We will continuously ask for the data from the device and store
-            // it in the queue.
-            while (true) {
-                // Lock that is common for read/write methods.
-                try
-                {
-                    if (_usbDevice == null) {
-                        OpenDevice();
-                        Log("No device. Recheking in 10 sec...");
+    /**
+     * Pushes the received packets to the subscriber instead of queuing them,
+     * as soon as the reader has them and as far as the subscriber asked for
+     * them. While anyone is subscribed the read queue stays empty. Not used
+     * while a framing is set, see SubscribeFrames().
+     * 
+     * @param endpointAddress bulk IN endpoint to receive from, or
+     *            Publisher.ANY_ENDPOINT.
+     * @param executor runs the callbacks, for example
+     *            Publisher.SAME_THREAD or GetMainThreadExecutor().
+     * @param subscriber owns the packets it gets and must release them.
+     */
+    public Publisher.Subscription SubscribePackets(int endpointAddress, Executor executor,
+            Publisher.Subscriber<Packet> subscriber) {
+        return _packetPublisher.subscribe(endpointAddress, executor,
+                Publisher.DEFAULT_BUFFER_SIZE, subscriber);
+    }
 
-                        Sleep(10000);
-                        continue;
-                    }
+    /**
+     * Like SubscribePackets(), for the messages cut out with the framing set
+     * by SetFraming().
+     */
+    public Publisher.Subscription SubscribeFrames(int endpointAddress, Executor executor,
+            Publisher.Subscriber<Frame> subscriber) {
+        return _framePublisher.subscribe(endpointAddress, executor,
+                Publisher.DEFAULT_BUFFER_SIZE, subscriber);
+    }
 
-                    for (UsbEndpoint readEp : BulkInEndpoint) {
-                        if (!_usbManager.getDeviceList().containsKey(_deviceName)) {
-                            Log("Failed to connect to the device. Retrying to acquire it.");
-                            OpenDevice();
-                            if (!_usbManager.getDeviceList().containsKey(_deviceName)) {
-                                Log("No device. Recheking in 10 sec...");
-
-                                Sleep(10000);
-                                continue;
-                            }
-                        }
-
-                        try
-                        {
-
-                            readConnection = _usbManager.openDevice(_usbDevice);
-
-                            if (readConnection == null) {
-                                Log("Cannot start reader because the user didn't gave me permissions or the device is not present. Retrying in 2 sec...");
-                                Sleep(2000);
-                                continue;
-                            }
-
-                            // Claim and lock the interface in the android
-                            // system.
-                            readConnection.claimInterface(readIntf, true);
-                        }
-                        catch (SecurityException e) {
-                            Log("Cannot start reader because the user didn't gave me permissions. Retrying in 2 sec...");
-
-                            Sleep(2000);
-                            continue;
-                        }
-
-                        // Show the reader started message once.
-                        if (!readerStartedMsgWasShown) {
-                            Log("!!! Reader was started !!!");
-                            readerStartedMsgWasShown = true;
-                        }
-
-                        // Read the data as a bulk transfer with the size =
-                        // MaxPacketSize
-                        int packetSize = readEp.getMaxPacketSize();
-                        byte[] bytes = new byte[packetSize];
-                        int r = readConnection.bulkTransfer(readEp, bytes, packetSize, 50);
-                        if (r >= 0) {
-                            byte[] trancatedBytes = new byte[r]; // Truncate
-                                                                 // bytes in the
-                                                                 // honor of r
-
-                            int i = 0;
-                            for (byte b : bytes) {
-                                trancatedBytes[i] = b;
-                                i++;
-                            }
-
-                            _receivedQueue.add(trancatedBytes); // Store
-                                                                // received data
-                            Log(String.format("EP:" + readEp.getAddress()
-                                    + " Message received of lengths %s and content: %s", r,
-                                    composeString(bytes)));
-                        }
-
-                        // Release the interface lock.
-                        readConnection.releaseInterface(readIntf);
-                        readConnection.close();
-                    }
+    /**
+     * Sends commands without waiting for the replies of the ones before,
+     * matching the received packets to them as replies. Received packets go
+     * to the pipeline instead of the read queue until it is closed.
+     *
+     * @param matcher tags the commands and finds the tag in the replies, for
+     *            example RequestPipeline.sequenceByte().
+     * @param maxInFlight commands that may wait for a reply at once.
+     */
+    public RequestPipeline<Packet> CreatePacketPipeline(RequestPipeline.Matcher matcher,
+            int maxInFlight) {
+        RequestPipeline<Packet> pipeline = new RequestPipeline<Packet>(_pipelineSender, matcher,
+                maxInFlight);
+        pipeline.start();
+        SubscribePackets(Publisher.ANY_ENDPOINT, Publisher.SAME_THREAD, pipeline);
+        return pipeline;
+    }
 
-                }
+    /**
+     * Like CreatePacketPipeline(), for replies cut out with the framing set
+     * by SetFraming().
+     */
+    public RequestPipeline<Frame> CreateFramePipeline(RequestPipeline.Matcher matcher,
+            int maxInFlight) {
+        RequestPipeline<Frame> pipeline = new RequestPipeline<Frame>(_pipelineSender, matcher,
+                maxInFlight);
+        pipeline.start();
+        SubscribeFrames(Publisher.ANY_ENDPOINT, Publisher.SAME_THREAD, pipeline);
+        return pipeline;
+    }
 
-                catch (NullPointerException e) {
-                    // Log("Error happened while reading. No device or the connection is busy");
-                    // Log.e("HidBridge", Log.getStackTraceString(e));
+    /**
+     * @return executor that runs the subscriber callbacks on the UI thread.
+     */
+    public synchronized Executor GetMainThreadExecutor() {
+        if (_mainThreadExecutor == null) {
+            final Handler handler = new Handler(_context.getMainLooper());
+            _mainThreadExecutor = new Executor() {
+                public void execute(Runnable command) {
+                    handler.post(command);
                 }
-                catch (ThreadDeath e) {
-                    if (readConnection != null) {
-                        readConnection.releaseInterface(readIntf);
-                        readConnection.close();
-                    }
+            };
+        }
+        return _mainThreadExecutor;
+    }
 
-                    throw e;
-                }
+    /**
+     * @return number of subscriptions cancelled because their subscriber
+     *         threw.
+     */
+    public long GetSubscriberFailureCount() {
+        return _packetPublisher.getFailedCount() + _framePublisher.getFailedCount();
+    }
 
-                // Sleep for 10 ms to pause, so other thread can write data or
-                // anything.
-                // As both read and write data methods lock each other - they
-                // cannot be run in parallel.
-                // Looks like Android is not so smart in planning the threads,
-                // so we need to give it a small time
-                // to switch the thread context.
-                Sleep(10);
-            }
+    /**
+     * @return true if there are any data in the queue to be read.
+     */
+    public boolean IsThereAnyReceivedData() {
+        return !_receivedQueue.isEmpty() || !_frameQueue.isEmpty();
+    }
+
+    /**
+     * Queue the data from the read queue.
+     * 
+     * @return queued data, exactly as long as the received packet, or the
+     *         whole message if a framing is set.
+     */
+    public byte[] GetReceivedDataFromQueue() {
+        Frame frame = _frameQueue.poll();
+        if (frame != null) {
+            byte[] bytes = frame.toByteArray();
+            frame.release();
+            return bytes;
         }
-    };
+        Packet packet = _receivedQueue.poll();
+        if (packet == null) {
+            return null;
+        }
+        byte[] bytes = new byte[packet.getLength()];
+        packet.copyTo(bytes, 0);
+        packet.release();
+        return bytes;
+    }
 
-    private void Sleep(int milliseconds) {
-        try {
-            Thread.sleep(milliseconds);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Takes the next packet from the read queue without copying it. The
+     * caller must call {@link Packet#release()} once it is done with it.
+     * 
+     * @return queued packet, or null if the queue is empty.
+     */
+    public Packet GetReceivedPacketFromQueue() {
+        return _receivedQueue.poll();
+    }
+
+    /**
+     * Chooses what happens to received packets when the consumer falls
+     * behind and the queue is full. Defaults to dropping the oldest packet.
+     * With BLOCK the readers wait, which leaves the device waiting too.
+     */
+    public void SetReceiveOverflowPolicy(BoundedQueue.OverflowPolicy policy) {
+        _receivedQueue.setOverflowPolicy(policy);
+    }
+
+    /**
+     * @return number of packets waiting in the read queue.
+     */
+    public int GetReceiveQueueDepth() {
+        return _receivedQueue.size();
+    }
+
+    /**
+     * @return the largest number of packets that waited in the read queue.
+     */
+    public long GetReceiveQueueHighWaterMark() {
+        return _receivedQueue.getHighWaterMark();
+    }
+
+    /**
+     * @return number of received packets dropped because the queue was full.
+     */
+    public long GetReceiveQueueDroppedCount() {
+        return _receivedQueue.getDroppedCount();
+    }
+
+    // Largest max packet size of the bulk IN endpoints.
+    private int maxInPacketSize() {
+        int size = 0;
+        for (int packetSize : _inPacketSizes) {
+            size = Math.max(size, packetSize);
         }
+        return size > 0 ? size : 64;
     }
 
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
 
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
+            UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            ConnectionLifecycle connection = _connection;
             if (ACTION_USB_PERMISSION.equals(action)) {
-                synchronized (this) {
-                    UsbDevice device = (UsbDevice) intent
-                            .getParcelableExtra(UsbManager.EXTRA_DEVICE);
-
-                    if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        if (device != null) {
-                            // call method to set up device communication
-                        }
+                _permissionRequested = false;
+                boolean granted = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED,
+                        false);
+                if (!granted) {
+                    Log.d("TAG", "permission denied for the device " + device);
+                    failOpens(new SecurityException("Permission denied for " + device));
+                } else if (device != null) {
+                    claimInterface();
+                }
+                // Open the device right away instead of at the next retry.
+                if (connection != null) {
+                    connection.onPermissionResult(granted && device != null);
+                }
+            } else if (isOurs(device)) {
+                if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+                    if (connection != null) {
+                        connection.onAttached();
                     }
-                    else {
-                        Log.d("TAG", "permission denied for the device " + device);
+                } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+                    _permissionRequested = false;
+                    failOpens(new IOException("Device detached"));
+                    if (connection != null) {
+                        connection.onDetached();
                     }
                 }
             }
@@ -490,22 +1192,32 @@ public class HidBridge {
      * @param message to log.
      */
     private void Log(String message) {
-        Log.e("HidBridge", message);
-        MissileLauncherActivity activity = (MissileLauncherActivity) _context;
-        activity.log(message + "\n");
-
+        _log.log(UsbLog.INFO, message);
     }
 
     /**
-     * Composes a string from byte array.
+     * Sets the lowest level that is logged. Packets are traced at
+     * UsbLog.DEBUG, everything else is logged at UsbLog.INFO.
+     * 
+     * @param level one of the android.util.Log levels.
      */
-    private String composeString(byte[] bytes) {
-        StringBuilder builder = new StringBuilder();
-        for (byte b : bytes) {
-            builder.append(b);
-            builder.append(" ");
-        }
+    public void SetLogLevel(int level) {
+        _log.setLevel(level);
+    }
 
-        return builder.toString();
+    /**
+     * @return number of log lines dropped because logging fell behind.
+     */
+    public long GetDroppedLogCount() {
+        return _log.getDroppedCount();
     }
+
+    // Writes the log lines on the log drain thread.
+    private final UsbLog.Sink _logSink = new UsbLog.Sink() {
+        public void write(int level, String tag, String line) {
+            Log.println(level, tag, line);
+            MissileLauncherActivity activity = (MissileLauncherActivity) _context;
+            activity.log(line);
+        }
+    };
 }
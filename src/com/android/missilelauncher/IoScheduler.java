@@ -0,0 +1,379 @@
+
+package com.android.missilelauncher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides which threads the bulk IN endpoints are read on, and keeps track
+ * of them so they can all be stopped and waited for.
+ * <p>
+ * Both modes read a connection with a {@link BulkInReader}: requests stay
+ * queued on all the endpoints and requestWait() completes whichever finishes
+ * first, so the endpoints are serviced in parallel by the bus. requestWait()
+ * completes the requests of the whole connection, so it takes one reader
+ * thread per connection, and a connection cannot share it with another.
+ * {@link Mode#MULTIPLEXED} hands the packets to the listener on that thread.
+ * {@link Mode#DEDICATED} hands every endpoint's packets to a thread of its
+ * own, so a slow consumer of one endpoint never holds up another, and the
+ * reader re-queues the requests right away.
+ * <p>
+ * The threads run at the priority given to the scheduler. Threads started
+ * with {@link #start(String, Runnable)}, such as the one that keeps the
+ * connection up, are tracked too.
+ */
+public final class IoScheduler {
+
+    public enum Mode {
+        /** One thread per endpoint the packets are delivered on. */
+        DEDICATED,
+        /** One thread for all the endpoints of a connection. */
+        MULTIPLEXED
+    }
+
+    private final Mode mMode;
+    private final int mPriority;
+    // Threads that may still run, guarded by this.
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+    private final List<Readers> mReaders = new ArrayList<Readers>();
+
+    /**
+     * @param priority of the threads, from Thread.MIN_PRIORITY to
+     *            Thread.MAX_PRIORITY.
+     */
+    public IoScheduler(Mode mode, int priority) {
+        if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+            throw new IllegalArgumentException("priority out of range");
+        }
+        mMode = mode;
+        mPriority = priority;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Runs the task on a new thread.
+     */
+    synchronized Thread start(String name, final Runnable task) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    untrack(Thread.currentThread(), null);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.setPriority(mPriority);
+        mThreads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Starts reading the endpoints. The packets go to the listener, which is
+     * called on several threads at once in DEDICATED mode, never for the
+     * same endpoint though.
+     *
+     * @param queueDepth requests kept queued on every endpoint, and packets
+     *            waiting for each dedicated thread.
+     * @param pool supplies the packets, it must hold at least queueDepth
+     *            packets per endpoint.
+     */
+    synchronized Readers startReaders(UsbTransport transport, int[] endpoints, int queueDepth,
+            PacketPool pool, BulkInReader.Listener listener) {
+        Readers readers = new Readers(transport, endpoints, queueDepth, pool, listener);
+        mReaders.add(readers);
+        for (Thread thread : readers.mReaderThreads) {
+            mThreads.add(thread);
+            thread.start();
+        }
+        return readers;
+    }
+
+    /**
+     * Stops every reader started by the scheduler and interrupts the other
+     * threads, except the calling one. The scheduler can be used again
+     * afterwards.
+     */
+    void stop() {
+        List<Readers> readers;
+        List<Thread> threads;
+        synchronized (this) {
+            readers = new ArrayList<Readers>(mReaders);
+            threads = new ArrayList<Thread>(mThreads);
+        }
+        for (Readers r : readers) {
+            r.stop();
+        }
+        for (Thread thread : threads) {
+            if (thread != Thread.currentThread()) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits for every thread started by the scheduler to end, except the
+     * calling one.
+     *
+     * @return false if some were still running after the timeout.
+     */
+    boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return join(runningThreads(), timeout, unit);
+    }
+
+    /**
+     * Stops like {@link #stop()} and waits for the threads running now on a
+     * thread of its own, so the caller never blocks. Threads started
+     * afterwards are not waited for.
+     *
+     * @return future that completes with false if some were still running
+     *         after the timeout.
+     */
+    UsbFuture<Boolean> stopAsync(final long timeout, final TimeUnit unit) {
+        stop();
+        final List<Thread> threads = runningThreads();
+        if (threads.isEmpty()) {
+            return UsbFuture.completed(Boolean.TRUE);
+        }
+        final UsbFuture<Boolean> stopped = new UsbFuture<Boolean>();
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    stopped.complete(join(threads, timeout, unit));
+                } catch (InterruptedException e) {
+                    stopped.fail(e);
+                }
+            }
+        }, "HidBridge-stop");
+        waiter.setDaemon(true);
+        waiter.start();
+        return stopped;
+    }
+
+    // Every thread of the scheduler except the calling one.
+    private synchronized List<Thread> runningThreads() {
+        List<Thread> threads = new ArrayList<Thread>(mThreads);
+        threads.remove(Thread.currentThread());
+        return threads;
+    }
+
+    private static boolean join(List<Thread> threads, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        }
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of threads of the scheduler that are running.
+     */
+    synchronized int getThreadCount() {
+        return mThreads.size();
+    }
+
+    // Called by every thread on its way out.
+    private synchronized void untrack(Thread thread, Readers readers) {
+        mThreads.remove(thread);
+        if (readers != null && --readers.mRunning == 0) {
+            mReaders.remove(readers);
+        }
+    }
+
+    /**
+     * The reader threads of one connection.
+     */
+    final class Readers {
+        private final List<Thread> mReaderThreads = new ArrayList<Thread>();
+        private final BulkInReader mReader;
+        private final EndpointDelivery[] mDedicated;
+        // Reader threads that did not end yet, guarded by the scheduler.
+        int mRunning;
+
+        Readers(UsbTransport transport, int[] endpoints, int queueDepth, PacketPool pool,
+                final BulkInReader.Listener listener) {
+            if (mMode == Mode.MULTIPLEXED) {
+                mDedicated = new EndpointDelivery[0];
+                mReader = new BulkInReader(transport, endpoints, queueDepth, pool, listener);
+                add("HidBridge-reader", mReader);
+            } else {
+                mDedicated = new EndpointDelivery[endpoints.length];
+                for (int i = 0; i < endpoints.length; i++) {
+                    mDedicated[i] = new EndpointDelivery(endpoints[i], queueDepth, listener);
+                }
+                mReader = new BulkInReader(transport, endpoints, queueDepth, pool,
+                        new BulkInReader.Listener() {
+                            public void onPacketReceived(Packet packet) {
+                                deliveryFor(packet.getEndpointAddress()).offer(packet);
+                            }
+
+                            public void onReaderError(String message) {
+                                listener.onReaderError(message);
+                            }
+                        });
+                add("HidBridge-reader", mReader);
+                for (EndpointDelivery delivery : mDedicated) {
+                    add("HidBridge-EP" + delivery.mEndpoint + "-reader", delivery);
+                }
+            }
+        }
+
+        private EndpointDelivery deliveryFor(int endpoint) {
+            for (EndpointDelivery delivery : mDedicated) {
+                if (delivery.mEndpoint == endpoint) {
+                    return delivery;
+                }
+            }
+            throw new IllegalStateException("EP:" + endpoint + " is not read");
+        }
+
+        private void add(String name, final Runnable reader) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        reader.run();
+                    } finally {
+                        // One endpoint gone ends the connection, like the
+                        // multiplexed reader does.
+                        Readers.this.stop();
+                        untrack(Thread.currentThread(), Readers.this);
+                    }
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.setPriority(mPriority);
+            mReaderThreads.add(thread);
+            mRunning++;
+        }
+
+        /**
+         * Stops the readers. Returns right away, see {@link #await()}.
+         */
+        void stop() {
+            mReader.stop();
+            for (EndpointDelivery delivery : mDedicated) {
+                delivery.stop();
+            }
+        }
+
+        /**
+         * Waits for every reader thread to end.
+         */
+        void await() throws InterruptedException {
+            for (Thread thread : mReaderThreads) {
+                thread.join();
+            }
+        }
+
+        /**
+         * @return number of packets handed to the listener.
+         */
+        long getDeliveredCount() {
+            if (mDedicated.length == 0) {
+                return mReader.getDeliveredCount();
+            }
+            long delivered = 0;
+            for (EndpointDelivery delivery : mDedicated) {
+                delivered += delivery.mDelivered;
+            }
+            return delivered;
+        }
+
+        /**
+         * @return number of packets dropped because the pool was empty, or
+         *         an endpoint's thread fell behind.
+         */
+        long getDroppedCount() {
+            long dropped = mReader.getDroppedCount();
+            for (EndpointDelivery delivery : mDedicated) {
+                dropped += delivery.mPackets.getDroppedCount();
+            }
+            return dropped;
+        }
+    }
+
+    // Hands the packets of one endpoint to the listener, on a thread of its
+    // own. A thread that falls behind drops its oldest packets.
+    private static final class EndpointDelivery implements Runnable {
+        private final int mEndpoint;
+        private final BulkInReader.Listener mListener;
+        private final BoundedQueue<Packet> mPackets;
+        private volatile boolean mStopped;
+        private volatile Thread mThread;
+        volatile long mDelivered;
+
+        EndpointDelivery(int endpoint, int capacity, BulkInReader.Listener listener) {
+            mEndpoint = endpoint;
+            mListener = listener;
+            mPackets = new BoundedQueue<Packet>(capacity, BoundedQueue.OverflowPolicy.DROP_OLDEST,
+                    new BoundedQueue.Recycler<Packet>() {
+                        public void recycle(Packet packet) {
+                            packet.release();
+                        }
+                    });
+        }
+
+        // Called on the reader thread.
+        void offer(Packet packet) {
+            mPackets.offer(packet);
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void stop() {
+            mStopped = true;
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        public void run() {
+            mThread = Thread.currentThread();
+            try {
+                while (!mStopped) {
+                    Packet packet = mPackets.poll();
+                    if (packet == null) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            break;
+                        }
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    mListener.onPacketReceived(packet);
+                    mDelivered++;
+                }
+            } finally {
+                mThread = null;
+                // Nobody takes them anymore.
+                Packet packet;
+                while ((packet = mPackets.poll()) != null) {
+                    packet.release();
+                }
+            }
+        }
+    }
+}
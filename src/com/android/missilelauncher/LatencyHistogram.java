@@ -0,0 +1,111 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in nanoseconds, recorded from any number of
+ * threads without locks or allocation.
+ * <p>
+ * Buckets split every power of two in four, so a percentile is known to
+ * within a quarter of its value at any scale. The count, sum and buckets are
+ * updated one after another, a reader racing a writer may see them off by
+ * one sample.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+            // raced with another writer, look again
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxNanos() {
+        return mMax.get();
+    }
+
+    public long getMeanNanos() {
+        long count = mCount.get();
+        return count > 0 ? mSum.get() / count : 0;
+    }
+
+    /**
+     * @param percentile from 0 to 100.
+     * @return the duration that the given share of the samples did not
+     *         exceed, rounded up to its bucket, 0 if there are no samples.
+     */
+    public long getPercentileNanos(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(lowerBound(i + 1) - 1, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Forgets every sample.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " p50=" + getPercentileNanos(50) / 1000 + "us p99="
+                + getPercentileNanos(99) / 1000 + "us max=" + getMaxNanos() / 1000 + "us";
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // Smallest value that falls into the bucket.
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        if (bucket >= BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        return (long) (SUB_COUNT + bucket % SUB_COUNT) << (exponent - SUB_BITS);
+    }
+}
@@ -0,0 +1,109 @@
+
+package com.android.missilelauncher;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One open launcher: its transport, the thread that sends its commands and
+ * the thread that reads its status. Launchers share nothing, so each of them
+ * runs at full speed no matter how many others are open.
+ */
+final class Launcher implements MotionController.Sink {
+    private final String mName;
+    private final UsbTransport mTransport;
+    // Records the traffic while a capture is running.
+    private final CaptureTransport mCapture;
+    private final CommandScheduler mCommands = new CommandScheduler();
+    private final StatusMonitor mStatusMonitor;
+    private final int mStatusEndpoint;
+
+    /**
+     * @param name device name, unique among the attached devices.
+     * @param transport open transport with the interface claimed.
+     * @param statusEndpoint address of the interrupt IN endpoint the status
+     *            is read from, -1 if there is none.
+     */
+    Launcher(String name, UsbTransport transport, int statusEndpoint) {
+        mName = name;
+        mCapture = new CaptureTransport(transport);
+        mTransport = mCapture;
+        mStatusEndpoint = statusEndpoint;
+        mCommands.setTransport(mTransport);
+        mStatusMonitor = new StatusMonitor(mCommands);
+        mStatusMonitor.subscribe(mStopFiring);
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    UsbTransport getTransport() {
+        return mTransport;
+    }
+
+    StatusMonitor getStatusMonitor() {
+        return mStatusMonitor;
+    }
+
+    CommandScheduler getCommands() {
+        return mCommands;
+    }
+
+    void start() {
+        mCommands.start();
+        if (mStatusEndpoint >= 0) {
+            mStatusMonitor.start(mTransport, mStatusEndpoint);
+        }
+    }
+
+    /**
+     * Queues a command for this launcher without blocking.
+     */
+    public void submit(int command) {
+        mCommands.submit(command);
+    }
+
+    /**
+     * Records everything sent to and received from the launcher to the
+     * file, replacing the capture that is running.
+     */
+    void startCapture(File file) throws IOException {
+        stopCapture();
+        mCapture.setCapture(new TrafficCapture(file, TrafficCapture.DEFAULT_CHUNK_SIZE));
+    }
+
+    void stopCapture() {
+        TrafficCapture capture = mCapture.getCapture();
+        if (capture != null) {
+            mCapture.setCapture(null);
+            capture.close();
+        }
+    }
+
+    /**
+     * Stops the threads and closes the transport.
+     */
+    void close() {
+        mStatusMonitor.stop();
+        mCommands.setTransport(null);
+        mCommands.stop();
+        // Makes the status thread return from requestWait().
+        mTransport.close();
+        stopCapture();
+    }
+
+    @Override
+    public String toString() {
+        return "Launcher " + mName;
+    }
+
+    // A launcher keeps firing until it is told to stop.
+    private final StatusMonitor.Subscriber mStopFiring = new StatusMonitor.Subscriber() {
+        public void onStatusChanged(int previous, int status) {
+            if (StatusMonitor.isFiring(status)) {
+                mCommands.submit(CommandScheduler.COMMAND_STOP);
+            }
+        }
+    };
+}
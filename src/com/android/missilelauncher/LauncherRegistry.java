@@ -0,0 +1,329 @@
+
+package com.android.missilelauncher;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Every attached launcher that matches the device filter, keyed by device
+ * name. Each one is opened as soon as there is permission for it and gets
+ * a {@link Launcher} of its own, with its own transport and threads, so
+ * launchers on a hub are driven side by side.
+ * <p>
+ * The endpoint layout of a device comes from a {@link DescriptorCache}, so
+ * reattaching a known launcher goes straight to claiming its interface. How
+ * long that takes is kept as the time to ready.
+ * <p>
+ * Launchers are opened and closed on a thread of the registry, one at a
+ * time, so a launcher can be claimed and take commands while the main
+ * thread is still busy setting up the UI. Only the listener runs on the
+ * main thread. The time from a device being seen to its first command is
+ * kept with its metrics. A stopped registry lets its thread end once the
+ * launchers are closed, and a registry created after it, as on a rotation,
+ * opens nothing before then.
+ * <p>
+ * Commands submitted to the registry go to every open launcher. The traffic
+ * of each launcher is recorded in a {@link MetricsRegistry}.
+ */
+final class LauncherRegistry implements MotionController.Sink {
+
+    /**
+     * Told about launchers coming and going, on the main thread.
+     */
+    interface Listener {
+        void onLauncherOpened(Launcher launcher);
+
+        void onLauncherClosed(Launcher launcher);
+    }
+
+    private static final String TAG = "LauncherRegistry";
+    private static final String ACTION_USB_PERMISSION =
+            "com.android.missilelauncher.LAUNCHER_PERMISSION";
+    // How long a new registry waits for the last one to close its launchers.
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    // Opener of the registry stopped last, guarded by the class.
+    private static ExecutorService sStoppedOpener;
+
+    private final Context mContext;
+    private final UsbManager mManager;
+    private final DeviceFilter mFilter;
+    private final DescriptorCache mDescriptors;
+    private final MetricsRegistry mMetrics;
+    private final Listener mListener;
+    private final ConcurrentHashMap<String, Launcher> mLaunchers =
+            new ConcurrentHashMap<String, Launcher>();
+    // Devices we asked the permission for, by name.
+    private final Set<String> mPending = Collections.synchronizedSet(new HashSet<String>());
+    // Devices handed to the opener thread and not open yet, by name.
+    private final Set<String> mOpening = Collections.synchronizedSet(new HashSet<String>());
+    private final ExecutorService mOpener = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MissileLauncher-open");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private boolean mStarted;
+    private volatile long mLastTimeToReady;
+    private volatile long mMaxTimeToReady;
+
+    LauncherRegistry(Context context, UsbManager manager, DeviceFilter filter,
+            MetricsRegistry metrics, Listener listener) {
+        mContext = context;
+        mManager = manager;
+        mFilter = filter;
+        mDescriptors = new DescriptorCache(filter);
+        mMetrics = metrics;
+        mListener = listener;
+        final ExecutorService previous;
+        synchronized (LauncherRegistry.class) {
+            previous = sStoppedOpener;
+        }
+        if (previous != null) {
+            // Queued first, so the devices the last registry still holds are
+            // released before this one claims them.
+            mOpener.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!previous.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                            Log.e(TAG, "launchers of the last registry still open");
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens every matching device that is attached already, asking for the
+     * permission where needed.
+     */
+    void start() {
+        if (!mStarted) {
+            mStarted = true;
+            mContext.registerReceiver(mPermissionReceiver, new IntentFilter(
+                    ACTION_USB_PERMISSION));
+        }
+        for (UsbDevice device : mManager.getDeviceList().values()) {
+            onAttached(device);
+        }
+    }
+
+    /**
+     * Closes all the launchers, on the opener thread, which ends afterwards.
+     * The registry cannot be started again.
+     */
+    void stop() {
+        if (mStarted) {
+            mStarted = false;
+            mContext.unregisterReceiver(mPermissionReceiver);
+        }
+        mPending.clear();
+        execute(new Runnable() {
+            public void run() {
+                for (String name : mLaunchers.keySet()) {
+                    close(name);
+                }
+            }
+        });
+        mOpener.shutdown();
+        synchronized (LauncherRegistry.class) {
+            sStoppedOpener = mOpener;
+        }
+    }
+
+    void onAttached(UsbDevice device) {
+        String name = device.getDeviceName();
+        if (!mFilter.matches(device) || mLaunchers.containsKey(name)
+                || mOpening.contains(name)) {
+            return;
+        }
+        if (mManager.hasPermission(device)) {
+            open(device);
+        } else if (mPending.add(name)) {
+            mManager.requestPermission(device,
+                    PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0));
+        }
+    }
+
+    void onDetached(UsbDevice device) {
+        final String name = device.getDeviceName();
+        mPending.remove(name);
+        // Runs after the open of the device, if it is in progress.
+        execute(new Runnable() {
+            public void run() {
+                close(name);
+            }
+        });
+    }
+
+    /**
+     * @return the launcher, or null if the device is not open.
+     */
+    Launcher get(String deviceName) {
+        return mLaunchers.get(deviceName);
+    }
+
+    Collection<Launcher> getLaunchers() {
+        return Collections.unmodifiableCollection(mLaunchers.values());
+    }
+
+    int size() {
+        return mLaunchers.size();
+    }
+
+    DescriptorCache getDescriptors() {
+        return mDescriptors;
+    }
+
+    /**
+     * @return time from a device with permission being seen to its launcher
+     *         running, for the last one opened.
+     */
+    long getLastTimeToReadyNanos() {
+        return mLastTimeToReady;
+    }
+
+    long getMaxTimeToReadyNanos() {
+        return mMaxTimeToReady;
+    }
+
+    /**
+     * Queues the command for every open launcher.
+     */
+    public void submit(int command) {
+        for (Launcher launcher : mLaunchers.values()) {
+            launcher.submit(command);
+        }
+    }
+
+    // Starts the clock and hands the device to the opener thread.
+    private void open(final UsbDevice device) {
+        final long seenAt = System.nanoTime();
+        if (!mOpening.add(device.getDeviceName())) {
+            return;
+        }
+        mMetrics.get(device.getDeviceName()).recordAttached(seenAt);
+        boolean queued = execute(new Runnable() {
+            public void run() {
+                try {
+                    openNow(device, seenAt);
+                } finally {
+                    mOpening.remove(device.getDeviceName());
+                }
+            }
+        });
+        if (!queued) {
+            mOpening.remove(device.getDeviceName());
+        }
+    }
+
+    // Hands the task to the opener thread, false once the registry stopped.
+    private boolean execute(Runnable task) {
+        try {
+            mOpener.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // Claims the device and starts its launcher, on the opener thread.
+    private void openNow(UsbDevice device, long seenAt) {
+        if (mLaunchers.containsKey(device.getDeviceName())) {
+            return;
+        }
+        DescriptorCache.Layout layout = mDescriptors.get(device);
+        if (layout == null) {
+            Log.e(TAG, "no interface on " + device.getDeviceName());
+            return;
+        }
+        UsbTransport transport;
+        try {
+            transport = AndroidUsbTransport.open(mManager, device,
+                    device.getInterface(layout.interfaceIndex));
+        } catch (SecurityException e) {
+            mMetrics.get(device.getDeviceName()).recordException(e);
+            Log.e(TAG, "no permission for " + device.getDeviceName());
+            return;
+        }
+        if (transport == null) {
+            Log.e(TAG, "cannot open " + device.getDeviceName());
+            return;
+        }
+        Launcher launcher = new Launcher(device.getDeviceName(),
+                mMetrics.wrap(device.getDeviceName(), transport), layout.statusEndpoint);
+        launcher.getCommands().setMetrics(mMetrics.get(device.getDeviceName()));
+        if (mLaunchers.putIfAbsent(launcher.getName(), launcher) != null) {
+            transport.close();
+            return;
+        }
+        launcher.start();
+        long readyAt = System.nanoTime();
+        mMetrics.get(launcher.getName()).recordReady(readyAt);
+        long timeToReady = readyAt - seenAt;
+        mLastTimeToReady = timeToReady;
+        if (timeToReady > mMaxTimeToReady) {
+            mMaxTimeToReady = timeToReady;
+        }
+        final Launcher opened = launcher;
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                mListener.onLauncherOpened(opened);
+            }
+        });
+    }
+
+    // On the opener thread.
+    private void close(String name) {
+        final Launcher launcher = mLaunchers.remove(name);
+        if (launcher != null) {
+            launcher.close();
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    mListener.onLauncherClosed(launcher);
+                }
+            });
+        }
+    }
+
+    private final BroadcastReceiver mPermissionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (device == null || !mPending.remove(device.getDeviceName())) {
+                return;
+            }
+            if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+                // The clock starts with the grant, the dialog is not ours.
+                open(device);
+            } else {
+                Log.e(TAG, "permission denied for " + device.getDeviceName());
+            }
+        }
+    };
+}
@@ -0,0 +1,121 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.widget.TextView;
+
+/**
+ * Shows the last lines of the log in a TextView. Lines can be added from any
+ * thread; they are batched and the view is redrawn at most once per display
+ * frame with only the lines that fit in a fixed-size ring, so the cost of a
+ * redraw does not grow with the history. Lines that arrive faster than they
+ * can be shown are dropped and counted.
+ */
+final class LogConsole {
+    static final int DEFAULT_CAPACITY = 200;
+    // Redraw interval, one frame at 60 fps.
+    private static final long FRAME_MILLIS = 16;
+
+    private final TextView mView;
+    private final String mHeader;
+    private final Handler mHandler;
+    private final BoundedQueue<String> mPending;
+    // Lines on screen, mLines[mFirst] is the oldest one.
+    private final String[] mLines;
+    private int mFirst;
+    private int mCount;
+    private final StringBuilder mText = new StringBuilder();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private long mLastDraw;
+
+    private final Runnable mRedraw = new Runnable() {
+        public void run() {
+            mScheduled.set(false);
+            redraw();
+        }
+    };
+
+    /**
+     * @param view shows the lines, only touched on the main thread.
+     * @param header shown above the lines.
+     * @param capacity number of lines kept on screen.
+     */
+    LogConsole(TextView view, String header, int capacity) {
+        mView = view;
+        mHeader = header;
+        mHandler = new Handler(Looper.getMainLooper());
+        mPending = new BoundedQueue<String>(capacity, BoundedQueue.OverflowPolicy.DROP_OLDEST,
+                null);
+        mLines = new String[capacity];
+        mView.setText(header);
+    }
+
+    /**
+     * Adds a line. A trailing line break is dropped. Can be called from any
+     * thread.
+     */
+    void append(String line) {
+        if (line.endsWith("\n")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        mPending.offer(line);
+        if (mScheduled.compareAndSet(false, true)) {
+            long wait = mLastDraw + FRAME_MILLIS - SystemClock.uptimeMillis();
+            mHandler.postDelayed(mRedraw, Math.max(0, wait));
+        }
+    }
+
+    /**
+     * @return number of lines that were never shown because they came in
+     *         faster than the view was redrawn.
+     */
+    long getDroppedCount() {
+        return mPending.getDroppedCount();
+    }
+
+    /**
+     * Removes every line from the screen.
+     */
+    void clear() {
+        mHandler.post(new Runnable() {
+            public void run() {
+                mPending.clear();
+                mFirst = 0;
+                mCount = 0;
+                redraw();
+            }
+        });
+    }
+
+    // Runs on the main thread.
+    private void redraw() {
+        String line;
+        while ((line = mPending.poll()) != null) {
+            if (mCount < mLines.length) {
+                mLines[(mFirst + mCount) % mLines.length] = line;
+                mCount++;
+            } else {
+                mLines[mFirst] = line;
+                mFirst = (mFirst + 1) % mLines.length;
+            }
+        }
+
+        StringBuilder text = mText;
+        text.setLength(0);
+        text.append(mHeader);
+        long dropped = getDroppedCount();
+        if (dropped > 0) {
+            text.append(" (").append(dropped).append(" lines dropped)");
+        }
+        text.append('\n');
+        for (int i = 0; i < mCount; i++) {
+            text.append(mLines[(mFirst + i) % mLines.length]).append('\n');
+        }
+        mView.setText(text);
+        mLastDraw = SystemClock.uptimeMillis();
+    }
+}
@@ -0,0 +1,413 @@
+
+package com.android.missilelauncher;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays scripted motion patterns, such as a sweep followed by a salvo. A
+ * script is compiled once into a {@link Macro}, a timeline of commands and
+ * the times they are due, so playing it parses and allocates nothing and a
+ * pattern that is played again and again keeps the same timing.
+ * <p>
+ * The timeline is played by a thread of its own, timed like the
+ * {@link MotionController}: it sleeps until a step is due and spins for the
+ * last part of the wait. How late every step went out is recorded, see
+ * {@link #getStepErrorNanos(int)}. The steps are timed from the start of
+ * the macro, not from the step before, so a late step does not delay the
+ * ones after it.
+ */
+final class MacroEngine implements Runnable, StatusMonitor.Subscriber {
+
+    /**
+     * Told when a macro ends, on the macro thread.
+     */
+    interface Listener {
+        /**
+         * @param completed false if the macro was stopped.
+         */
+        void onMacroFinished(Macro macro, boolean completed);
+    }
+
+    /** Plays the macro until it is stopped. */
+    static final int REPEAT_FOREVER = 0;
+
+    /** How long "wait for status" waits if the script does not say. */
+    static final long DEFAULT_STATUS_TIMEOUT_MS = 5000;
+
+    // Step that waits for the next status change instead of sending.
+    private static final int WAIT_STATUS = -1;
+    // The last part of every wait is spun, parking is not that precise.
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    /**
+     * A compiled script. The steps are separated by commas, semicolons or
+     * new lines:
+     * <ul>
+     * <li>[sweep|move] left|right|up|down &lt;ms&gt; [ms]: moves for that
+     * long. Moves in a row follow each other without stopping, anything else
+     * stops the turret first.</li>
+     * <li>fire, stop, status: sends the command.</li>
+     * <li>wait &lt;ms&gt; [ms]: stands still.</li>
+     * <li>wait for status [&lt;ms&gt; [ms]]: polls the status and waits for it
+     * to change, at most the given time. The steps after it are timed from
+     * the change.</li>
+     * </ul>
+     * For example "sweep left 800 ms, up 200 ms, fire, wait for status".
+     * Macros are immutable and may be shared.
+     */
+    static final class Macro {
+        private final String mScript;
+        // The command of every step, or WAIT_STATUS.
+        private final int[] mCommands;
+        // When every step is due, from the start of the macro or from the
+        // last status change it waited for.
+        private final long[] mAt;
+        // How long a WAIT_STATUS step waits.
+        private final long[] mTimeouts;
+        // When the macro ends, timed like the steps.
+        private final long mEnd;
+
+        private Macro(String script, int[] commands, long[] at, long[] timeouts, long end) {
+            mScript = script;
+            mCommands = commands;
+            mAt = at;
+            mTimeouts = timeouts;
+            mEnd = end;
+        }
+
+        /**
+         * @throws IllegalArgumentException if a step is not understood.
+         */
+        static Macro compile(String script) {
+            String[] steps = script.trim().toLowerCase(Locale.US).split("\\s*[,;\\n]\\s*");
+            // Every step compiles to at most a STOP and a command.
+            int[] commands = new int[steps.length * 2 + 1];
+            long[] at = new long[commands.length];
+            long[] timeouts = new long[commands.length];
+            int count = 0;
+            long time = 0;
+            boolean moving = false;
+            for (int i = 0; i < steps.length; i++) {
+                String[] words = steps[i].split("\\s+");
+                int w = 0;
+                if (words[0].equals("sweep") || words[0].equals("move")) {
+                    w++;
+                }
+                int motion = w < words.length ? motion(words[w]) : 0;
+                if (motion != 0) {
+                    long duration = duration(words, w + 1, steps[i]);
+                    commands[count] = motion;
+                    at[count++] = time;
+                    time += duration;
+                    moving = true;
+                    continue;
+                }
+                if (steps[i].length() == 0) {
+                    continue;
+                }
+                if (moving) {
+                    commands[count] = CommandScheduler.COMMAND_STOP;
+                    at[count++] = time;
+                    moving = false;
+                }
+                if (w > 0 || words.length == 0) {
+                    throw new IllegalArgumentException("Step " + (i + 1) + ": " + steps[i]);
+                } else if (steps[i].equals("fire")) {
+                    commands[count] = CommandScheduler.COMMAND_FIRE;
+                    at[count++] = time;
+                } else if (steps[i].equals("stop")) {
+                    commands[count] = CommandScheduler.COMMAND_STOP;
+                    at[count++] = time;
+                } else if (steps[i].equals("status")) {
+                    commands[count] = CommandScheduler.COMMAND_STATUS;
+                    at[count++] = time;
+                } else if (words[0].equals("wait") && words.length >= 3
+                        && words[1].equals("for") && words[2].equals("status")) {
+                    commands[count] = WAIT_STATUS;
+                    timeouts[count] = words.length > 3 ? duration(words, 3, steps[i])
+                            : TimeUnit.MILLISECONDS.toNanos(DEFAULT_STATUS_TIMEOUT_MS);
+                    at[count++] = time;
+                    time = 0;
+                } else if (words[0].equals("wait")) {
+                    time += duration(words, 1, steps[i]);
+                } else {
+                    throw new IllegalArgumentException("Step " + (i + 1) + ": " + steps[i]);
+                }
+            }
+            if (moving) {
+                commands[count] = CommandScheduler.COMMAND_STOP;
+                at[count++] = time;
+            }
+            if (count == 0) {
+                throw new IllegalArgumentException("Empty script");
+            }
+            return new Macro(script, copyOf(commands, count), copyOf(at, count),
+                    copyOf(timeouts, count), time);
+        }
+
+        /**
+         * @return number of steps on the timeline, which can be more than
+         *         the script has since the stops between moves are steps.
+         */
+        int getStepCount() {
+            return mCommands.length;
+        }
+
+        /**
+         * @return the command the step sends, -1 if it waits for a status
+         *         change.
+         */
+        int getCommand(int step) {
+            return mCommands[step];
+        }
+
+        private boolean waitsForStatus() {
+            for (int command : mCommands) {
+                if (command == WAIT_STATUS) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return mScript;
+        }
+
+        private static int motion(String word) {
+            if (word.equals("left")) {
+                return CommandScheduler.COMMAND_LEFT;
+            } else if (word.equals("right")) {
+                return CommandScheduler.COMMAND_RIGHT;
+            } else if (word.equals("up")) {
+                return CommandScheduler.COMMAND_UP;
+            } else if (word.equals("down")) {
+                return CommandScheduler.COMMAND_DOWN;
+            }
+            return 0;
+        }
+
+        // Parses "<ms> [ms]" at words[w], to nanoseconds.
+        private static long duration(String[] words, int w, String step) {
+            if (w >= words.length || words.length > w + 2
+                    || (words.length == w + 2 && !words[w + 1].equals("ms"))) {
+                throw new IllegalArgumentException("Expected a time in ms: " + step);
+            }
+            long ms;
+            try {
+                ms = Long.parseLong(words[w]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected a time in ms: " + step);
+            }
+            if (ms < 0) {
+                throw new IllegalArgumentException("Negative time: " + step);
+            }
+            return TimeUnit.MILLISECONDS.toNanos(ms);
+        }
+
+        private static int[] copyOf(int[] array, int length) {
+            int[] copy = new int[length];
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
+
+        private static long[] copyOf(long[] array, int length) {
+            long[] copy = new long[length];
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
+    }
+
+    private final MotionController.Sink mCommands;
+    private volatile Listener mListener;
+    private volatile Thread mThread;
+    private volatile Macro mMacro;
+    private volatile int mRepetitions;
+    // How late every step of the macro went out the last time, in
+    // nanoseconds.
+    private volatile long[] mStepErrors = new long[0];
+    private final LatencyHistogram mTimingError = new LatencyHistogram();
+    // Counts the status changes, a status wait waits for it to move.
+    private volatile int mStatusChanges;
+    private volatile long mStatusTimeouts;
+    private volatile long mPlayed;
+
+    MacroEngine(MotionController.Sink commands) {
+        mCommands = commands;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Plays the macro, stopping the one that is playing.
+     *
+     * @param repetitions how many times to play it, or REPEAT_FOREVER.
+     */
+    synchronized void start(Macro macro, int repetitions) {
+        if (repetitions < 0) {
+            throw new IllegalArgumentException("repetitions must not be negative");
+        }
+        if (repetitions == REPEAT_FOREVER && macro.mEnd == 0 && !macro.waitsForStatus()) {
+            throw new IllegalArgumentException("A macro that takes no time cannot repeat forever");
+        }
+        stop();
+        mMacro = macro;
+        mRepetitions = repetitions;
+        mStepErrors = new long[macro.getStepCount()];
+        Thread thread = new Thread(this, "MissileLauncher-macro");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the macro and the turret.
+     */
+    synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread == null) {
+            return;
+        }
+        if (thread != Thread.currentThread()) {
+            thread.interrupt();
+            // Waiting for it makes sure the STOP is the last command sent.
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mCommands.submit(CommandScheduler.COMMAND_STOP);
+    }
+
+    boolean isPlaying() {
+        Thread thread = mThread;
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * @return how late the step went out the last time it was played, in
+     *         nanoseconds.
+     */
+    long getStepErrorNanos(int step) {
+        return mStepErrors[step];
+    }
+
+    /**
+     * @return how late the steps went out, over every macro played.
+     */
+    LatencyHistogram getTimingError() {
+        return mTimingError;
+    }
+
+    /**
+     * @return number of status waits that gave up.
+     */
+    long getStatusTimeoutCount() {
+        return mStatusTimeouts;
+    }
+
+    /**
+     * @return number of times a macro was played to the end.
+     */
+    long getPlayedCount() {
+        return mPlayed;
+    }
+
+    public void onStatusChanged(int previous, int status) {
+        mStatusChanges++;
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        Macro macro = mMacro;
+        int[] commands = macro.mCommands;
+        long[] at = macro.mAt;
+        long[] errors = mStepErrors;
+        boolean completed = true;
+        long start = System.nanoTime();
+        play:
+        for (int round = 0; mRepetitions == REPEAT_FOREVER || round < mRepetitions; round++) {
+            for (int step = 0; step < commands.length; step++) {
+                long deadline = start + at[step];
+                long late = sleepUntil(deadline, self);
+                if (late < 0) {
+                    completed = false;
+                    break play;
+                }
+                errors[step] = late;
+                mTimingError.record(late);
+                if (commands[step] != WAIT_STATUS) {
+                    mCommands.submit(commands[step]);
+                } else {
+                    if (!waitForStatus(macro.mTimeouts[step], self)) {
+                        completed = false;
+                        break play;
+                    }
+                    start = System.nanoTime();
+                }
+            }
+            start += macro.mEnd;
+            mPlayed++;
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMacroFinished(macro, completed);
+        }
+    }
+
+    /**
+     * Polls the status and waits for it to change.
+     *
+     * @return false if the engine was stopped.
+     */
+    private boolean waitForStatus(long timeout, Thread self) {
+        int changes = mStatusChanges;
+        mCommands.submit(CommandScheduler.COMMAND_STATUS);
+        long deadline = System.nanoTime() + timeout;
+        long wait;
+        while (mStatusChanges == changes) {
+            if (mThread != self) {
+                return false;
+            }
+            if ((wait = deadline - System.nanoTime()) <= 0) {
+                mStatusTimeouts++;
+                break;
+            }
+            LockSupport.parkNanos(this, wait);
+        }
+        return mThread == self;
+    }
+
+    /**
+     * Waits until the deadline.
+     *
+     * @return how late it woke up, -1 if the engine was stopped.
+     */
+    private long sleepUntil(long deadline, Thread self) {
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            if (mThread != self) {
+                return -1;
+            }
+            long wait = deadline - now;
+            if (wait > SPIN_NANOS) {
+                LockSupport.parkNanos(this, wait - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+        return mThread == self ? now - deadline : -1;
+    }
+}
@@ -0,0 +1,56 @@
+
+package com.android.missilelauncher;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link UsbMetrics} of every device we talked to since the registry was
+ * created, by device name. Metrics survive the device being unplugged, so a
+ * replugged device keeps adding to the same counters.
+ */
+public final class MetricsRegistry {
+    private final ConcurrentHashMap<String, UsbMetrics> mDevices =
+            new ConcurrentHashMap<String, UsbMetrics>();
+
+    /**
+     * @return the metrics of the device, created on first use.
+     */
+    public UsbMetrics get(String deviceName) {
+        UsbMetrics metrics = mDevices.get(deviceName);
+        if (metrics == null) {
+            UsbMetrics created = new UsbMetrics(deviceName);
+            metrics = mDevices.putIfAbsent(deviceName, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the devices by name, in name order.
+     */
+    public Map<String, UsbMetrics> getDevices() {
+        return new TreeMap<String, UsbMetrics>(mDevices);
+    }
+
+    /**
+     * @return the transport, recording its traffic under the device name.
+     */
+    UsbTransport wrap(String deviceName, UsbTransport transport) {
+        return new MetricsTransport(transport, get(deviceName));
+    }
+
+    /**
+     * @return every device as text, a few lines each.
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        for (UsbMetrics metrics : getDevices().values()) {
+            metrics.dump(out);
+        }
+        return out.toString();
+    }
+}
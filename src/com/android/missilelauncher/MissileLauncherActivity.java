@@ -16,12 +16,7 @@
 
 package com.android.missilelauncher;
 
-import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Iterator;
-
 import android.app.Activity;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -30,16 +25,9 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
-import android.hardware.usb.UsbRequest;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -47,69 +35,77 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 public class MissileLauncherActivity extends Activity
-        implements View.OnClickListener, Runnable {
+        implements View.OnClickListener {
 
     private static final String TAG = "MissileLauncherActivity";
+    // The board the HidBridge talks to. It is in device_filter.xml so that
+    // plugging it in starts the app, but it is no launcher.
+    private static final int BRIDGE_VENDOR_ID = 1155;
+    private static final int BRIDGE_PRODUCT_ID = 22336;
 
     private Button mFire;
     private Button mShoot;
     private Button mStop;
     private UsbManager mUsbManager;
-    private UsbDevice mDevice;
-    private UsbDeviceConnection mConnection;
-    private UsbEndpoint mEndpointIntr;
+    // Every launcher in device_filter.xml that is attached, by device name.
+    private LauncherRegistry mLaunchers;
+    // Moves the turrets in proportion to the tilt.
+    private MotionController mMotion;
+    // Plays the sweep on a long press on Shoot, the tilt is ignored
+    // meanwhile.
+    private MacroEngine mMacros;
+    private MacroEngine.Macro mSweep;
+    private static final String SWEEP_SCRIPT =
+            "sweep left 800 ms, up 200 ms, fire, wait for status, sweep right 800 ms, down 200 ms";
+    private boolean mResumed;
     private SensorManager mSensorManager;
     private Sensor mGravitySensor;
-
-    UsbDevice deviceFound = null;
-    UsbInterface usbInterfaceFound = null;
-    UsbEndpoint endpointIn = null;
-    UsbEndpoint endpointOut = null;
-
-    // USB control commands
-    private static final int COMMAND_UP = 1;
-    private static final int COMMAND_DOWN = 2;
-    private static final int COMMAND_RIGHT = 4;
-    private static final int COMMAND_LEFT = 8;
-    private static final int COMMAND_FIRE = 16;
-    private static final int COMMAND_STOP = 32;
-    private static final int COMMAND_STATUS = 64;
-
-    // constants for accelerometer orientation
-    private static final int TILT_LEFT = 1;
-    private static final int TILT_RIGHT = 2;
-    private static final int TILT_UP = 4;
-    private static final int TILT_DOWN = 8;
-    private static final double THRESHOLD = 5.0;
-
-    private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
-    PendingIntent mPermissionIntent;
+    // Traffic and latency of every device, shown in the metrics overlay.
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private View mMetricsOverlay;
+    private TextView mMetricsView;
+    private static final long METRICS_REFRESH_MS = 500;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // Claim the launchers first: the registry opens them on its own
+        // thread while the layout is inflated, so they take commands as soon
+        // as possible after being plugged in. The bridge board is left to
+        // the HidBridge, one connection owns a device.
+        mUsbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
+        mLaunchers = new LauncherRegistry(this, mUsbManager,
+                DeviceFilter.fromResource(this, R.xml.device_filter).without(BRIDGE_VENDOR_ID,
+                        BRIDGE_PRODUCT_ID), mMetrics, mLauncherListener);
+        mLaunchers.start();
+
         setContentView(R.layout.launcher);
         mFire = (Button) findViewById(R.id.fire);
         mFire.setOnClickListener(this);
         mShoot = (Button) findViewById(R.id.shoot);
         mShoot.setOnClickListener(this);
+        mShoot.setOnLongClickListener(mPlaySweep);
         mStop = (Button) findViewById(R.id.stop);
         mStop.setOnClickListener(this);
-        mUsbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
 
         mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
         mGravitySensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
-        mPermissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(
-                ACTION_USB_PERMISSION), 0);
-        IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
-        registerReceiver(mUsbReceiver, filter);
+        mMotion = new MotionController(mLaunchers);
+        mMacros = new MacroEngine(mLaunchers);
+        mMacros.setListener(mMacroListener);
+        mSweep = MacroEngine.Macro.compile(SWEEP_SCRIPT);
 
         registerReceiver(mUsbDeviceReceiver, new IntentFilter(
                 UsbManager.ACTION_USB_DEVICE_ATTACHED));
         registerReceiver(mUsbDeviceReceiver, new IntentFilter(
                 UsbManager.ACTION_USB_DEVICE_DETACHED));
         mTextView_ShowConsole = (TextView) findViewById(R.id.ShowConsole);
+        mConsole = new LogConsole(mTextView_ShowConsole, "Show Info:",
+                LogConsole.DEFAULT_CAPACITY);
+        mMetricsOverlay = findViewById(R.id.metricsOverlay);
+        mMetricsView = (TextView) findViewById(R.id.metrics);
+        mTextView_ShowConsole.setOnLongClickListener(mToggleMetrics);
     }
 
     private final BroadcastReceiver mUsbDeviceReceiver = new BroadcastReceiver() {
@@ -117,265 +113,101 @@ public class MissileLauncherActivity extends Activity
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
+            UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (device == null) {
+                return;
+            }
             if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
-
-                deviceFound = (UsbDevice) intent
-                        .getParcelableExtra(UsbManager.EXTRA_DEVICE);
-                Toast.makeText(
-                        MissileLauncherActivity.this,
-                        "ACTION_USB_DEVICE_ATTACHED: \n"
-                                + deviceFound.toString(), Toast.LENGTH_LONG)
-                        .show();
-
-                searchEndPoint();
-
+                Toast.makeText(MissileLauncherActivity.this,
+                        "ACTION_USB_DEVICE_ATTACHED: \n" + device.toString(),
+                        Toast.LENGTH_LONG).show();
+                mLaunchers.onAttached(device);
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
-
-                UsbDevice device = (UsbDevice) intent
-                        .getParcelableExtra(UsbManager.EXTRA_DEVICE);
-
                 Toast.makeText(MissileLauncherActivity.this,
                         "ACTION_USB_DEVICE_DETACHED: \n" + device.toString(),
                         Toast.LENGTH_LONG).show();
-
-                if (device != null) {
-                    if (device == deviceFound) {
-                        releaseUsb();
-                    } else {
-//                        Toast.makeText(MissileLauncherActivity.this,
-//                                "device == deviceFound, no call releaseUsb()\n" +
-//                                        device.toString() + "\n" +
-//                                        deviceFound.toString(),
-//                                Toast.LENGTH_LONG).show();
-                    }
-                } else {
-                    Toast.makeText(MissileLauncherActivity.this,
-                            "device == null, no call releaseUsb()", Toast.LENGTH_LONG).show();
-                }
-
+                mLaunchers.onDetached(device);
             }
         }
 
     };
 
-    private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
-
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (ACTION_USB_PERMISSION.equals(action)) {
-
-                Toast.makeText(MissileLauncherActivity.this, "ACTION_USB_PERMISSION",
-                        Toast.LENGTH_LONG).show();
+    private final LauncherRegistry.Listener mLauncherListener = new LauncherRegistry.Listener() {
+        public void onLauncherOpened(Launcher launcher) {
+            launcher.getStatusMonitor().subscribe(mMacros);
+            // The first command is still to come, the metrics dump has it.
+            log(launcher + " ready in " + mLaunchers.getLastTimeToReadyNanos() / 1000 + " us, "
+                    + mLaunchers.size() + " in use\n");
+        }
 
-                synchronized (this) {
-                    UsbDevice device = (UsbDevice) intent
-                            .getParcelableExtra(UsbManager.EXTRA_DEVICE);
-
-                    if (intent.getBooleanExtra(
-                            UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        if (device != null) {
-                            searchEndPoint();
-                        }
-                    } else {
-                        Toast.makeText(MissileLauncherActivity.this,
-                                "permission denied for device " + device,
-                                Toast.LENGTH_LONG).show();
-                    }
-                }
-            }
+        public void onLauncherClosed(Launcher launcher) {
+            launcher.getStatusMonitor().unsubscribe(mMacros);
+            log(launcher + " closed, " + mLaunchers.size() + " in use\n");
         }
     };
 
     @Override
     public void onPause() {
         super.onPause();
+        mResumed = false;
+        mTextView_ShowConsole.removeCallbacks(mDeferredResume);
         mSensorManager.unregisterListener(mGravityListener);
-    }
-
-    protected void releaseUsb() {
-        if (mConnection != null) {
-            if (usbInterfaceFound != null) {
-                mConnection.releaseInterface(usbInterfaceFound);
-                usbInterfaceFound = null;
-            }
-            mConnection.close();
-            mConnection = null;
-        }
-
+        mMacros.stop();
+        mMotion.stop();
+        mMetricsView.removeCallbacks(mRefreshMetrics);
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        mSensorManager.registerListener(mGravityListener, mGravitySensor,
-                SensorManager.SENSOR_DELAY_NORMAL);
+        mResumed = true;
+        // Runs once the layout is done, after the first frame.
+        mTextView_ShowConsole.post(mDeferredResume);
 
         Intent intent = getIntent();
         Log.d(TAG, "intent: " + intent);
         String action = intent.getAction();
 
         UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        if (device == null) {
+            return;
+        }
         if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
-            // setDevice(device);
-            searchEndPoint();
+            mLaunchers.onAttached(device);
         } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
-            if (mDevice != null && mDevice.equals(device)) {
-                setDevice(null);
-            }
+            mLaunchers.onDetached(device);
         }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        unregisterReceiver(mUsbReceiver);
         unregisterReceiver(mUsbDeviceReceiver);
-        releaseUsb();
-    }
-
-    private void searchEndPoint() {
-
-        usbInterfaceFound = null;
-        endpointOut = null;
-        endpointIn = null;
-
-        // Search device for targetVendorID and targetProductID
-        if (deviceFound == null) {
-            UsbManager manager = (UsbManager) getSystemService(Context.USB_SERVICE);
-            HashMap<String, UsbDevice> deviceList = manager.getDeviceList();
-            Iterator<UsbDevice> deviceIterator = deviceList.values().iterator();
-
-            while (deviceIterator.hasNext()) {
-                UsbDevice device = deviceIterator.next();
-                String s = device.toString() + "\n" + "DeviceID: "
-                        + device.getDeviceId() + "\n" + "DeviceName: "
-                        + device.getDeviceName() + "\n" + "DeviceClass: "
-                        + device.getDeviceClass() + "\n" + "DeviceSubClass: "
-                        + device.getDeviceSubclass() + "\n" + "VendorID: "
-                        + device.getVendorId() + "\n" + "ProductID: "
-                        + device.getProductId() + "\n" + "InterfaceCount: "
-                        + device.getInterfaceCount();
-                Log.e(TAG, s);
-                if (device.getVendorId() == 0x0483) {
-                    // if (device.getProductId() == targetProductID) {
-                    deviceFound = device;
-                    break;
-                }
-            }
-        }
-
-        if (deviceFound == null) {
-            Toast.makeText(MissileLauncherActivity.this, "device not found",
-                    Toast.LENGTH_LONG).show();
-        } else {
-            // Search for UsbInterface with Endpoint of USB_ENDPOINT_XFER_BULK,
-            // and direction USB_DIR_OUT and USB_DIR_IN
-
-            for (int i = 0; i < deviceFound.getInterfaceCount(); i++) {
-                Log.e(TAG, " interface [" + i + "]" + " ");
-                UsbInterface usbif = deviceFound.getInterface(i);
-                UsbEndpoint tOut = null;
-                UsbEndpoint tIn = null;
-                int tEndpointCnt = usbif.getEndpointCount();
-                Log.e(TAG, " interface [" + i + "]" + " EndpointCount = " + tEndpointCnt);
-                if (tEndpointCnt > 0) {
-                    for (int j = 0; j < tEndpointCnt; j++) {
-                        Log.e(TAG, "Endpoint [" + j + "]" + " Type ="
-                                + usbif.getEndpoint(j).getType());
-                        Log.e(TAG, "Endpoint [" + j + "]" + " Direction = "
-                                + usbif.getEndpoint(j).getDirection());
-                        Log.e(TAG, "Endpoint [" + j + "]" + " Address = "
-                                + usbif.getEndpoint(j).getAddress());
-                        if (usbif.getEndpoint(j).getAddress() == 0x81) {
-                            endpointOut = usbif.getEndpoint(j);
-                            usbInterfaceFound = usbif;
-                        } else if (usbif.getEndpoint(j).getAddress() == 0x1) {
-                            endpointIn = usbif.getEndpoint(j);
-                        }
-                    }
-                }
-
-            }
-            if (endpointOut != null && usbInterfaceFound != null) {
-                UsbDeviceConnection connection = mUsbManager.openDevice(deviceFound);
-                if (connection != null && connection.claimInterface(usbInterfaceFound, true)) {
-                    Log.d(TAG, "open SUCCESS");
-                    mConnection = connection;
-                } else {
-                    Log.d(TAG, "open FAIL");
-                    mConnection = null;
-                }
-            }
-        }
-    }
-
-    private void setDevice(UsbDevice device) {
-        Log.d(TAG, "setDevice " + device);
-        if (device.getInterfaceCount() != 1) {
-            Log.e(TAG, "could not find interface");
-            return;
-        }
-        UsbInterface intf = device.getInterface(0);
-        // device should have one endpoint
-        if (intf.getEndpointCount() != 1) {
-            Log.e(TAG, "could not find endpoint");
-            return;
-        }
-        // endpoint should be of type interrupt
-        UsbEndpoint ep = intf.getEndpoint(0);
-        if (ep.getType() != UsbConstants.USB_ENDPOINT_XFER_INT) {
-            Log.e(TAG, "endpoint is not interrupt type");
-            return;
-        }
-        mDevice = device;
-        mEndpointIntr = ep;
-        if (device != null) {
-            UsbDeviceConnection connection = mUsbManager.openDevice(device);
-            if (connection != null && connection.claimInterface(intf, true)) {
-                Log.d(TAG, "open SUCCESS");
-                mConnection = connection;
-                Thread thread = new Thread(this);
-                thread.start();
-
-            } else {
-                Log.d(TAG, "open FAIL");
-                mConnection = null;
-            }
-        }
-    }
-
-    private void sendCommand(int control) {
-        synchronized (this) {
-            if (control != COMMAND_STATUS) {
-                Log.d(TAG, "sendMove " + control);
-            }
-            if (mConnection != null) {
-                byte[] message = new byte[1];
-                message[0] = (byte) control;
-                // Send command via a control request on endpoint zero
-                mConnection.controlTransfer(0x21, 0x9, 0x200, 0, message, message.length, 0);
-            }
-        }
+        mLaunchers.stop();
     }
 
     private HidBridge hidBridge;
-    public StringBuffer mStringBuffer_Console_Text = new StringBuffer("Show Info:\n");
     public TextView mTextView_ShowConsole;
+    // Last lines of the log, redrawn at most once per frame.
+    private LogConsole mConsole;
 
     public void onClick(View v) {
         if (v == mFire) {
-            // sendCommand(COMMAND_FIRE);
+            // mLaunchers.submit(CommandScheduler.COMMAND_FIRE);
             if (hidBridge == null) {
-                hidBridge = new HidBridge(this, 22336, 1155);
-                hidBridge.OpenDevice();
-                hidBridge.StartReadingThread();
+                hidBridge = new HidBridge(this, BRIDGE_PRODUCT_ID, BRIDGE_VENDOR_ID);
+                hidBridge.SetMetricsRegistry(mMetrics);
+                // Start reading once there is permission and the interface
+                // is ours, no retries needed.
+                hidBridge.OpenDeviceAsync().then(mStartReading).addCallback(mOpenCallback);
             }
         }
         byte[] sendOut = "Hello World!!!".getBytes();
         if (v == mShoot) {
             if (hidBridge != null) {
-                hidBridge.WriteData(sendOut);
+                // Queued for the writer thread, the UI thread never waits
+                // for the bus.
+                hidBridge.WriteDataAsync(sendOut).addCallback(mShootCallback);
             }
         }
         if (v == mStop) {
@@ -386,95 +218,119 @@ public class MissileLauncherActivity extends Activity
         }
     }
 
-    Handler handler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            mStringBuffer_Console_Text.append(msg.obj);
-            mTextView_ShowConsole.setText(mStringBuffer_Console_Text);
-            super.handleMessage(msg);
-        }
-    };
-
-    void log(String messageString) {
-        handler.obtainMessage(0, messageString).sendToTarget();
-    }
+    private final UsbFuture.Continuation<Void, Void> mStartReading =
+            new UsbFuture.Continuation<Void, Void>() {
+                public UsbFuture<Void> apply(Void value) {
+                    hidBridge.StartReadingThread();
+                    return null;
+                }
+            };
 
-    private int mLastValue = 0;
+    private final UsbFuture.Callback<Void> mOpenCallback = new UsbFuture.Callback<Void>() {
+        public void onSuccess(Void value) {
+            log("Device open, reading\n");
+        }
 
-    SensorEventListener mGravityListener = new SensorEventListener() {
-        public void onSensorChanged(SensorEvent event) {
+        public void onFailure(final Throwable error) {
+            // Let the next press on Fire start over.
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    log("Cannot open the device: " + error + "\n");
+                    if (hidBridge != null) {
+                        hidBridge.CloseTheDevice();
+                        hidBridge = null;
+                    }
+                }
+            });
+        }
+    };
 
-            // compute current tilt
-            int value = 0;
-            if (event.values[0] < -THRESHOLD) {
-                value += TILT_LEFT;
-            } else if (event.values[0] > THRESHOLD) {
-                value += TILT_RIGHT;
-            }
-            if (event.values[1] < -THRESHOLD) {
-                value += TILT_UP;
-            } else if (event.values[1] > THRESHOLD) {
-                value += TILT_DOWN;
-            }
+    // Reports how the shot went on every endpoint.
+    private final UsbFuture.Callback<WriteResult> mShootCallback =
+            new UsbFuture.Callback<WriteResult>() {
+                public void onSuccess(WriteResult result) {
+                    log("Shoot: " + result + "\n");
+                }
 
-            if (value != mLastValue) {
-                mLastValue = value;
-                // send motion command if the tilt changed
-                switch (value) {
-                    case TILT_LEFT:
-                        sendCommand(COMMAND_LEFT);
-                        break;
-                    case TILT_RIGHT:
-                        sendCommand(COMMAND_RIGHT);
-                        break;
-                    case TILT_UP:
-                        sendCommand(COMMAND_UP);
-                        break;
-                    case TILT_DOWN:
-                        sendCommand(COMMAND_DOWN);
-                        break;
-                    default:
-                        sendCommand(COMMAND_STOP);
-                        break;
+                public void onFailure(Throwable error) {
+                    log("Shoot failed: " + error + "\n");
                 }
+            };
+
+    // What onResume() does not need for the launchers to take commands.
+    private final Runnable mDeferredResume = new Runnable() {
+        public void run() {
+            // Sample the tilt faster than the PWM period of the controller.
+            mSensorManager.registerListener(mGravityListener, mGravitySensor,
+                    SensorManager.SENSOR_DELAY_UI);
+            mMotion.setTilt(0, 0);
+            mMotion.start();
+            if (mMetricsOverlay.getVisibility() == View.VISIBLE) {
+                mRefreshMetrics.run();
             }
         }
+    };
 
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            // ignore
+    // A long press on Shoot plays the sweep on every launcher.
+    private final View.OnLongClickListener mPlaySweep = new View.OnLongClickListener() {
+        public boolean onLongClick(View v) {
+            mMotion.stop();
+            mMacros.start(mSweep, 1);
+            return true;
         }
     };
 
-    @Override
-    public void run() {
-        ByteBuffer buffer = ByteBuffer.allocate(1);
-        UsbRequest request = new UsbRequest();
-        request.initialize(mConnection, mEndpointIntr);
-        byte status = -1;
-        while (true) {
-            // queue a request on the interrupt endpoint
-            request.queue(buffer, 1);
-            // send poll status command
-            sendCommand(COMMAND_STATUS);
-            // wait for status event
-            if (mConnection.requestWait() == request) {
-                byte newStatus = buffer.get(0);
-                if (newStatus != status) {
-                    Log.d(TAG, "got status " + newStatus);
-                    status = newStatus;
-                    if ((status & COMMAND_FIRE) != 0) {
-                        // stop firing
-                        sendCommand(COMMAND_STOP);
+    // Reports the timing of the sweep and hands the turret back to the
+    // tilt.
+    private final MacroEngine.Listener mMacroListener = new MacroEngine.Listener() {
+        public void onMacroFinished(final MacroEngine.Macro macro, final boolean completed) {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    log("Macro " + (completed ? "done" : "stopped") + ", timing error "
+                            + mMacros.getTimingError() + "\n");
+                    if (completed && mResumed) {
+                        mMotion.setTilt(0, 0);
+                        mMotion.start();
                     }
                 }
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                }
+            });
+        }
+    };
+
+    // A long press on the console shows or hides the metrics.
+    private final View.OnLongClickListener mToggleMetrics = new View.OnLongClickListener() {
+        public boolean onLongClick(View v) {
+            if (mMetricsOverlay.getVisibility() == View.VISIBLE) {
+                mMetricsOverlay.setVisibility(View.GONE);
+                mMetricsView.removeCallbacks(mRefreshMetrics);
             } else {
-                Log.e(TAG, "requestWait failed, exiting");
-                break;
+                mMetricsOverlay.setVisibility(View.VISIBLE);
+                mRefreshMetrics.run();
             }
+            return true;
+        }
+    };
+
+    // Redraws the overlay twice a second while it is shown.
+    private final Runnable mRefreshMetrics = new Runnable() {
+        public void run() {
+            mMetricsView.setText(mMetrics.dump());
+            mMetricsView.postDelayed(this, METRICS_REFRESH_MS);
         }
+    };
+
+    void log(String messageString) {
+        mConsole.append(messageString);
     }
+
+    SensorEventListener mGravityListener = new SensorEventListener() {
+        public void onSensorChanged(SensorEvent event) {
+            // the controller turns the tilt into pulses of motion
+            mMotion.setTilt(event.values[0], event.values[1]);
+        }
+
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            // ignore
+        }
+    };
 }
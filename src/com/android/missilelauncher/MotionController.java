@@ -0,0 +1,228 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns the tilt of the device into proportional turret motion. The launcher
+ * only knows full speed and stop, so every PWM period drives the horizontal
+ * axis, then the vertical axis, each for a share of the period that grows
+ * with the tilt, and stops for the rest of it. Small tilts give short
+ * pulses for fine aiming, a full tilt moves continuously.
+ * <p>
+ * The pulses are timed by a thread of its own that sleeps until the next
+ * edge and spins for the last part of the wait. How late it wakes up is
+ * measured, see {@link #getMaxJitterNanos()}. Only edges that change the
+ * command are sent, a few control transfers per period at most. They go to
+ * a {@link Sink}: one {@link CommandScheduler} or all the launchers of a
+ * {@link LauncherRegistry}.
+ */
+final class MotionController implements Runnable {
+
+    /**
+     * Takes the commands, without blocking the timer thread.
+     */
+    interface Sink {
+        void submit(int command);
+    }
+
+    static final long DEFAULT_PERIOD_MS = 100;
+    // Tilt in m/s^2 below which the turret does not move, and at which it
+    // moves continuously.
+    static final float DEFAULT_DEAD_ZONE = 1.5f;
+    static final float DEFAULT_FULL_SCALE = 7.0f;
+
+    // Shorter pulses are not worth a control transfer.
+    private static final long MIN_PULSE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // The last part of every wait is spun, parking is not that precise.
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    private final Sink mCommands;
+    private volatile long mPeriodNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PERIOD_MS);
+    private volatile float mDeadZone = DEFAULT_DEAD_ZONE;
+    private volatile float mFullScale = DEFAULT_FULL_SCALE;
+    private volatile float mTiltX;
+    private volatile float mTiltY;
+    private volatile Thread mThread;
+    private volatile long mMaxJitter;
+    private volatile long mJitterSum;
+    private volatile long mEdges;
+
+    MotionController(Sink commands) {
+        mCommands = commands;
+    }
+
+    /**
+     * Sets the PWM period, every axis gets one pulse per period.
+     */
+    void setPeriod(long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        mPeriodNanos = unit.toNanos(period);
+    }
+
+    /**
+     * Sets the tilt below which the turret does not move and the tilt at
+     * which it moves continuously, in m/s^2.
+     */
+    void setRange(float deadZone, float fullScale) {
+        if (deadZone < 0 || fullScale <= deadZone) {
+            throw new IllegalArgumentException("need 0 <= deadZone < fullScale");
+        }
+        mDeadZone = deadZone;
+        mFullScale = fullScale;
+    }
+
+    /**
+     * Sets the tilt from the gravity sensor: x is negative to the left, y
+     * negative upwards. Takes effect at the next period.
+     */
+    void setTilt(float x, float y) {
+        mTiltX = x;
+        mTiltY = y;
+    }
+
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        Thread thread = new Thread(this, "MissileLauncher-motion");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the timer thread and the turret.
+     */
+    synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+            // It only submits commands, so it is gone right away. Waiting
+            // for it makes sure the STOP is the last command it sent.
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mCommands.submit(CommandScheduler.COMMAND_STOP);
+    }
+
+    /**
+     * @return the latest the timer thread woke up for an edge, in
+     *         nanoseconds.
+     */
+    long getMaxJitterNanos() {
+        return mMaxJitter;
+    }
+
+    /**
+     * @return how late the timer thread woke up for an edge on average, in
+     *         nanoseconds.
+     */
+    long getMeanJitterNanos() {
+        long edges = mEdges;
+        return edges > 0 ? mJitterSum / edges : 0;
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        // Last command sent, only edges that change it are sent.
+        int command = CommandScheduler.COMMAND_STOP;
+        long periodStart = System.nanoTime();
+        while (mThread == self) {
+            long period = mPeriodNanos;
+            int horizontal = mTiltX < 0 ? CommandScheduler.COMMAND_LEFT
+                    : CommandScheduler.COMMAND_RIGHT;
+            int vertical = mTiltY < 0 ? CommandScheduler.COMMAND_UP
+                    : CommandScheduler.COMMAND_DOWN;
+            long onX = pulse(mTiltX, period);
+            long onY = pulse(mTiltY, period);
+            if (onX + onY > period) {
+                // Share the period in proportion when both axes want more.
+                onX = period * onX / (onX + onY);
+                onY = period - onX;
+            }
+
+            if (onX > 0) {
+                command = send(horizontal, command);
+                if (!sleepUntil(periodStart + onX, self)) {
+                    break;
+                }
+            }
+            if (onY > 0) {
+                command = send(vertical, command);
+                if (!sleepUntil(periodStart + onX + onY, self)) {
+                    break;
+                }
+            }
+            if (period - onX - onY >= MIN_PULSE_NANOS || onX + onY == 0) {
+                command = send(CommandScheduler.COMMAND_STOP, command);
+            }
+            periodStart += period;
+            if (System.nanoTime() - periodStart > period) {
+                // Fell behind, do not try to catch up.
+                periodStart = System.nanoTime();
+            }
+            if (!sleepUntil(periodStart, self)) {
+                break;
+            }
+        }
+    }
+
+    // On time of an axis within the period, 0 or at least MIN_PULSE_NANOS.
+    private long pulse(float tilt, long period) {
+        float magnitude = Math.abs(tilt);
+        float deadZone = mDeadZone;
+        if (magnitude <= deadZone) {
+            return 0;
+        }
+        float duty = Math.min(1f, (magnitude - deadZone) / (mFullScale - deadZone));
+        long on = (long) (duty * period);
+        if (on < MIN_PULSE_NANOS) {
+            return 0;
+        }
+        // Not worth stopping for a moment either.
+        return period - on < MIN_PULSE_NANOS ? period : on;
+    }
+
+    private int send(int command, int last) {
+        if (command != last) {
+            mCommands.submit(command);
+        }
+        return command;
+    }
+
+    /**
+     * Waits until the deadline and records how late it woke up.
+     *
+     * @return false if the controller was stopped.
+     */
+    private boolean sleepUntil(long deadline, Thread self) {
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            if (mThread != self) {
+                return false;
+            }
+            long wait = deadline - now;
+            if (wait > SPIN_NANOS) {
+                LockSupport.parkNanos(this, wait - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+        long late = now - deadline;
+        if (late > mMaxJitter) {
+            mMaxJitter = late;
+        }
+        mJitterSum += late;
+        mEdges++;
+        return mThread == self;
+    }
+}
@@ -0,0 +1,123 @@
+
+package com.android.missilelauncher;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A received packet backed by a recycled direct buffer. The packet is a view
+ * of exactly the bytes that were transferred; the owner must call
+ * {@link #release()} once it is done with it so the buffer can be queued on
+ * the bus again. Views that share the packet, such as the frames of a
+ * {@link FrameDecoder}, {@link #retain()} it and release it on their own;
+ * the buffer goes back once the last of them released it.
+ */
+public final class Packet implements ReceivedData {
+    private final PacketPool mPool;
+    private final ByteBuffer mBuffer;
+    private int mEndpointAddress;
+    private int mLength;
+    // Owners of the packet, 1 when it leaves the pool.
+    private final AtomicInteger mReferences = new AtomicInteger();
+
+    Packet(PacketPool pool, int capacity) {
+        mPool = pool;
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * @return address of the endpoint the packet was read from.
+     */
+    public int getEndpointAddress() {
+        return mEndpointAddress;
+    }
+
+    /**
+     * @return number of bytes transferred.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the byte at the given index of the packet.
+     */
+    public byte get(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mBuffer.get(index);
+    }
+
+    /**
+     * Copies the packet into the given array.
+     * 
+     * @return number of bytes copied.
+     */
+    public int copyTo(byte[] destination, int offset) {
+        if (offset < 0 || offset + mLength > destination.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + mLength);
+        }
+        // Absolute reads, the packet may be handed to several subscribers
+        // that read it on their own threads.
+        for (int i = 0; i < mLength; i++) {
+            destination[offset + i] = mBuffer.get(i);
+        }
+        return mLength;
+    }
+
+    /**
+     * Returns the packet bytes as a buffer whose position is 0 and limit is
+     * the packet length. The buffer is a view of its own over the bytes of
+     * the pool, so readers on other threads do not move it, and must not be
+     * used after {@link #release()}.
+     */
+    public ByteBuffer buffer() {
+        ByteBuffer view = mBuffer.duplicate();
+        view.limit(mLength).position(0);
+        return view;
+    }
+
+    /**
+     * Adds an owner, who must call {@link #release()} too.
+     */
+    public void retain() {
+        if (mReferences.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Packet retained after its release");
+        }
+    }
+
+    /**
+     * Hands the packet back to its pool once every owner released it.
+     */
+    public void release() {
+        int references = mReferences.decrementAndGet();
+        if (references == 0) {
+            mPool.release(this);
+        } else if (references < 0) {
+            throw new IllegalStateException("Packet released twice");
+        }
+    }
+
+    // Taken from the pool by a single owner.
+    void acquired() {
+        mReferences.set(1);
+    }
+
+    // Buffer used by the read request, cleared and limited to the length read.
+    ByteBuffer receiveBuffer(int length) {
+        mBuffer.clear();
+        mBuffer.limit(length);
+        return mBuffer;
+    }
+
+    // Buffer as left behind by the transfer.
+    ByteBuffer rawBuffer() {
+        return mBuffer;
+    }
+
+    void set(int endpointAddress, int length) {
+        mEndpointAddress = endpointAddress;
+        mLength = length;
+    }
+}
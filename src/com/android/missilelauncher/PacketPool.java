@@ -0,0 +1,76 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of packets that are recycled between the readers and the
+ * consumers. All buffers are allocated up front, so reading in steady state
+ * does not allocate anything.
+ */
+public final class PacketPool {
+    private final ArrayBlockingQueue<Packet> mFree;
+    private final int mPacketSize;
+    private final int mCount;
+    private final AtomicLong mExhausted = new AtomicLong();
+
+    /**
+     * @param count number of packets in the pool.
+     * @param packetSize capacity of each packet, the max packet size of the
+     *            endpoints that are read into the pool.
+     */
+    public PacketPool(int count, int packetSize) {
+        if (count < 1 || packetSize < 1) {
+            throw new IllegalArgumentException("count and packetSize must be positive");
+        }
+        mFree = new ArrayBlockingQueue<Packet>(count);
+        mPacketSize = packetSize;
+        mCount = count;
+        for (int i = 0; i < count; i++) {
+            mFree.add(new Packet(this, packetSize));
+        }
+    }
+
+    /**
+     * @return a free packet, or null if all of them are in use.
+     */
+    Packet acquire() {
+        Packet packet = mFree.poll();
+        if (packet == null) {
+            mExhausted.incrementAndGet();
+        } else {
+            packet.acquired();
+        }
+        return packet;
+    }
+
+    void release(Packet packet) {
+        packet.set(0, 0);
+        if (!mFree.offer(packet)) {
+            throw new IllegalStateException("Packet released twice");
+        }
+    }
+
+    public int getPacketSize() {
+        return mPacketSize;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return number of packets that are currently free.
+     */
+    public int getAvailable() {
+        return mFree.size();
+    }
+
+    /**
+     * @return how many times a packet was requested while none was free.
+     */
+    public long getExhaustedCount() {
+        return mExhausted.get();
+    }
+}
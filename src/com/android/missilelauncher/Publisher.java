@@ -0,0 +1,255 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes received items to subscribers as they arrive, in the style of
+ * Reactive Streams: a subscriber gets no more items than it requested, and
+ * its callbacks run one at a time on the executor it chose.
+ * <p>
+ * Every subscription has a small bounded buffer. Items that arrive while the
+ * subscriber has no demand wait there; once it is full the oldest are
+ * dropped, so a slow subscriber never holds up the reader or the other
+ * subscribers. Items are shared, not copied: each subscriber that gets one
+ * owns a reference and must release it.
+ */
+public final class Publisher<T> {
+
+    /**
+     * Receives the items of a subscription, on the executor given to
+     * subscribe(), never two calls at once.
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called first. Nothing is delivered until the subscriber asks for
+         * it with {@link Subscription#request(long)}.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * The subscriber owns the item and must release it.
+         */
+        void onNext(T item);
+
+        /**
+         * No more items will come, after the buffered ones were delivered.
+         */
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Asks for up to n more items, Long.MAX_VALUE for no limit.
+         */
+        void request(long n);
+
+        /**
+         * Stops the delivery. Buffered items are released.
+         */
+        void cancel();
+
+        /**
+         * @return number of items dropped because the buffer was full.
+         */
+        long getDroppedCount();
+    }
+
+    /**
+     * How items are shared and which endpoint they come from.
+     */
+    interface Items<T> extends BoundedQueue.Recycler<T> {
+        void retain(T item);
+
+        int endpointOf(T item);
+    }
+
+    /** Subscribes to every endpoint. */
+    public static final int ANY_ENDPOINT = -1;
+
+    /** Buffer of a subscription, in items. */
+    public static final int DEFAULT_BUFFER_SIZE = 16;
+
+    /**
+     * Runs the callbacks on the thread that publishes, the reader thread, as
+     * soon as an item is read. The callbacks must not block.
+     */
+    public static final Executor SAME_THREAD = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Items<T> mItems;
+    private final CopyOnWriteArrayList<Channel> mChannels = new CopyOnWriteArrayList<Channel>();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    Publisher(Items<T> items) {
+        mItems = items;
+    }
+
+    /**
+     * @param endpointAddress endpoint whose items are delivered, or
+     *            ANY_ENDPOINT.
+     * @param bufferSize items kept while the subscriber has no demand.
+     */
+    Subscription subscribe(int endpointAddress, Executor executor, int bufferSize,
+            Subscriber<T> subscriber) {
+        Channel channel = new Channel(endpointAddress, executor, bufferSize, subscriber);
+        mChannels.add(channel);
+        // Delivers onSubscribe.
+        channel.schedule();
+        return channel;
+    }
+
+    /**
+     * @return number of subscriptions cancelled because a callback threw.
+     */
+    long getFailedCount() {
+        return mFailed.get();
+    }
+
+    boolean hasSubscribers() {
+        return !mChannels.isEmpty();
+    }
+
+    /**
+     * Hands the item to every subscriber of its endpoint. Takes over the
+     * item, which is released if nobody wants it.
+     */
+    void publish(T item) {
+        int endpoint = mItems.endpointOf(item);
+        for (Channel channel : mChannels) {
+            if (channel.mEndpoint == ANY_ENDPOINT || channel.mEndpoint == endpoint) {
+                mItems.retain(item);
+                channel.offer(item);
+            }
+        }
+        mItems.recycle(item);
+    }
+
+    /**
+     * Ends the stream of the current subscribers, which get onComplete()
+     * once their buffers are drained. Later subscribers are not affected.
+     */
+    void complete() {
+        for (Channel channel : mChannels) {
+            mChannels.remove(channel);
+            channel.mCompleted = true;
+            channel.schedule();
+        }
+    }
+
+    // A subscription. Callbacks run in run(), which the missed counter keeps
+    // to one executor task at a time.
+    private final class Channel implements Subscription, Runnable {
+        final int mEndpoint;
+        private final Executor mExecutor;
+        private final Subscriber<T> mSubscriber;
+        private final BoundedQueue<T> mBuffer;
+        private final AtomicLong mRequested = new AtomicLong();
+        private final AtomicInteger mMissed = new AtomicInteger();
+        private volatile boolean mCancelled;
+        volatile boolean mCompleted;
+        // Only touched in run().
+        private boolean mSubscribed;
+        private boolean mDone;
+
+        Channel(int endpoint, Executor executor, int bufferSize, Subscriber<T> subscriber) {
+            mEndpoint = endpoint;
+            mExecutor = executor;
+            mSubscriber = subscriber;
+            mBuffer = new BoundedQueue<T>(bufferSize, BoundedQueue.OverflowPolicy.DROP_OLDEST,
+                    mItems);
+        }
+
+        void offer(T item) {
+            mBuffer.offer(item);
+            schedule();
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                throw new IllegalArgumentException("n must be positive");
+            }
+            long requested;
+            long next;
+            do {
+                requested = mRequested.get();
+                next = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            } while (!mRequested.compareAndSet(requested, next));
+            schedule();
+        }
+
+        public void cancel() {
+            mCancelled = true;
+            mChannels.remove(this);
+            schedule();
+        }
+
+        public long getDroppedCount() {
+            return mBuffer.getDroppedCount();
+        }
+
+        void schedule() {
+            if (mMissed.getAndIncrement() == 0) {
+                mExecutor.execute(this);
+            }
+        }
+
+        public void run() {
+            int missed = 1;
+            do {
+                if (!mSubscribed) {
+                    mSubscribed = true;
+                    try {
+                        mSubscriber.onSubscribe(this);
+                    } catch (RuntimeException e) {
+                        fail();
+                    }
+                }
+                if (mCancelled || mDone) {
+                    mBuffer.clear();
+                } else {
+                    drain();
+                }
+                missed = mMissed.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            long requested = mRequested.get();
+            long delivered = 0;
+            T item;
+            while (delivered != requested && !mCancelled && (item = mBuffer.poll()) != null) {
+                try {
+                    mSubscriber.onNext(item);
+                } catch (RuntimeException e) {
+                    fail();
+                }
+                delivered++;
+            }
+            if (delivered != 0 && requested != Long.MAX_VALUE) {
+                mRequested.addAndGet(-delivered);
+            }
+            if (mCompleted && !mCancelled && mBuffer.isEmpty()) {
+                mDone = true;
+                try {
+                    mSubscriber.onComplete();
+                } catch (RuntimeException e) {
+                    fail();
+                }
+            }
+        }
+
+        // A broken subscriber must not take the reader down or leave the
+        // channel unscheduled, it just loses its subscription.
+        private void fail() {
+            mFailed.incrementAndGet();
+            cancel();
+        }
+    }
+}
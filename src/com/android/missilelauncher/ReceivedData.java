@@ -0,0 +1,29 @@
+
+package com.android.missilelauncher;
+
+/**
+ * Bytes received from the device that belong to a pool, a {@link Packet} or
+ * a {@link Frame}. The owner must release them.
+ */
+public interface ReceivedData {
+    /**
+     * @return address of the endpoint the data was read from.
+     */
+    int getEndpointAddress();
+
+    int getLength();
+
+    /**
+     * @return the byte at the given index.
+     */
+    byte get(int index);
+
+    /**
+     * Copies the data into the given array.
+     *
+     * @return number of bytes copied.
+     */
+    int copyTo(byte[] destination, int offset);
+
+    void release();
+}
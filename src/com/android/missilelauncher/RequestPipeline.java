@@ -0,0 +1,296 @@
+
+package com.android.missilelauncher;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends requests without waiting for the replies of the ones before, and
+ * pairs each reply with its request. A {@link Matcher} tags every request
+ * with a key and finds the key in the replies, so replies may come back in
+ * any order. Every request gets a future that completes with its reply or
+ * fails once its own timeout passes.
+ * <p>
+ * The pipeline subscribes to the received data and matches the replies on
+ * the thread that delivers them, the reader thread of a HidBridge, so a
+ * reply completes its future as soon as it is read. Up to maxInFlight
+ * requests wait for replies at a time; requests beyond that fail right away,
+ * the same way a full writer queue does.
+ */
+public final class RequestPipeline<R extends ReceivedData> implements Publisher.Subscriber<R> {
+
+    /**
+     * Correlates replies with requests.
+     */
+    public interface Matcher {
+        /**
+         * Tags the request, for example by writing the sequence number into
+         * it.
+         *
+         * @param sequence number of the request, counting from 0.
+         * @return key the reply will carry.
+         */
+        int tag(byte[] request, int sequence);
+
+        /**
+         * @return key of the request the data replies to, or NO_KEY if it is
+         *         not a reply.
+         */
+        int keyOf(ReceivedData reply);
+    }
+
+    /**
+     * Sends a request to the device.
+     */
+    interface Sender {
+        UsbFuture<WriteResult> send(byte[] request);
+    }
+
+    public static final int NO_KEY = -1;
+
+    private static final class Pending<R> implements Delayed {
+        final int key;
+        final UsbFuture<R> future;
+        final long sentAt;
+        final long deadline;
+
+        Pending(int key, UsbFuture<R> future, long sentAt, long deadline) {
+            this.key = key;
+            this.future = future;
+            this.sentAt = sentAt;
+            this.deadline = deadline;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            long diff = deadline - ((Pending<?>) other).deadline;
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+    }
+
+    private final Sender mSender;
+    private final Matcher mMatcher;
+    private final int mMaxInFlight;
+    private final ConcurrentHashMap<Integer, Pending<R>> mPending =
+            new ConcurrentHashMap<Integer, Pending<R>>();
+    private final DelayQueue<Pending<R>> mDeadlines = new DelayQueue<Pending<R>>();
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final LatencyHistogram mRoundTrip = new LatencyHistogram();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mUnmatched = new AtomicLong();
+    private volatile int mMaxInFlightSeen;
+    private volatile Publisher.Subscription mSubscription;
+    private volatile Thread mThread;
+
+    /**
+     * @param maxInFlight requests that may wait for a reply at once.
+     */
+    RequestPipeline(Sender sender, Matcher matcher, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        mSender = sender;
+        mMatcher = matcher;
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * A matcher that writes the low byte of the sequence number into the
+     * request and reads it back from the reply, for devices that echo a
+     * sequence byte. Allows up to 256 requests in flight.
+     *
+     * @param requestOffset where the sequence byte goes in a request.
+     * @param replyOffset where it is in a reply.
+     */
+    public static Matcher sequenceByte(final int requestOffset, final int replyOffset) {
+        return new Matcher() {
+            public int tag(byte[] request, int sequence) {
+                request[requestOffset] = (byte) sequence;
+                return sequence & 0xff;
+            }
+
+            public int keyOf(ReceivedData reply) {
+                return reply.getLength() > replyOffset ? reply.get(replyOffset) & 0xff : NO_KEY;
+            }
+        };
+    }
+
+    /**
+     * Sends the request.
+     *
+     * @param request bytes to send, tagged by the matcher before they go
+     *            out. Must not be modified until the future is done.
+     * @param timeoutMs how long to wait for the reply.
+     * @return future that completes with the reply, which the caller owns
+     *         and must release, or fails with a TimeoutException.
+     */
+    public UsbFuture<R> submit(byte[] request, long timeoutMs) {
+        UsbFuture<R> future = new UsbFuture<R>();
+        if (mThread == null) {
+            future.fail(new IllegalStateException("Pipeline closed"));
+            return future;
+        }
+        int inFlight = mInFlight.incrementAndGet();
+        if (inFlight > mMaxInFlight) {
+            mInFlight.decrementAndGet();
+            future.fail(new IllegalStateException("Too many requests in flight"));
+            return future;
+        }
+        if (inFlight > mMaxInFlightSeen) {
+            mMaxInFlightSeen = inFlight;
+        }
+        int key = mMatcher.tag(request, mSequence.getAndIncrement());
+        long now = System.nanoTime();
+        final Pending<R> pending = new Pending<R>(key, future, now,
+                now + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+        if (mPending.putIfAbsent(key, pending) != null) {
+            mInFlight.decrementAndGet();
+            future.fail(new IllegalStateException("Key " + key + " is still in flight"));
+            return future;
+        }
+        mDeadlines.add(pending);
+        if (mThread == null) {
+            // Closed meanwhile, close() may have missed the request.
+            finish(pending, new IllegalStateException("Pipeline closed"));
+            return future;
+        }
+        mSender.send(request).addCallback(new UsbFuture.Callback<WriteResult>() {
+            public void onSuccess(WriteResult result) {
+                if (!result.isSuccess()) {
+                    finish(pending, new IOException("Write failed: " + result));
+                }
+            }
+
+            public void onFailure(Throwable error) {
+                finish(pending, error);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Starts the thread that fails the requests whose timeout passed.
+     */
+    synchronized void start() {
+        if (mThread == null) {
+            mThread = new Thread(mExpiry, "MissileLauncher-pipeline");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stops matching replies and fails every request in flight. Called
+     * when the received data ends too.
+     */
+    public synchronized void close() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        Publisher.Subscription subscription = mSubscription;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        for (Pending<R> pending : mPending.values()) {
+            finish(pending, new IllegalStateException("Pipeline closed"));
+        }
+    }
+
+    /**
+     * @return number of requests waiting for their reply.
+     */
+    public int getInFlight() {
+        return mPending.size();
+    }
+
+    /**
+     * @return the most requests that waited for replies at once.
+     */
+    public int getMaxInFlight() {
+        return mMaxInFlightSeen;
+    }
+
+    /**
+     * @return time from sending a request to its reply.
+     */
+    public LatencyHistogram getRoundTripLatency() {
+        return mRoundTrip;
+    }
+
+    public long getTimeoutCount() {
+        return mTimeouts.get();
+    }
+
+    /**
+     * @return received data that replied to no request in flight.
+     */
+    public long getUnmatchedCount() {
+        return mUnmatched.get();
+    }
+
+    public void onSubscribe(Publisher.Subscription subscription) {
+        mSubscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    public void onNext(R reply) {
+        int key = mMatcher.keyOf(reply);
+        Pending<R> pending = key != NO_KEY ? mPending.remove(key) : null;
+        if (pending == null) {
+            mUnmatched.incrementAndGet();
+            reply.release();
+            return;
+        }
+        mInFlight.decrementAndGet();
+        mDeadlines.remove(pending);
+        mRoundTrip.record(System.nanoTime() - pending.sentAt);
+        if (!pending.future.complete(reply)) {
+            // Cancelled by the caller meanwhile.
+            reply.release();
+        }
+    }
+
+    public void onComplete() {
+        close();
+    }
+
+    private void finish(Pending<R> pending, Throwable error) {
+        if (mPending.remove(pending.key, pending)) {
+            mInFlight.decrementAndGet();
+            mDeadlines.remove(pending);
+            pending.future.fail(error);
+        }
+    }
+
+    // Fails the requests whose deadline passed.
+    private final Runnable mExpiry = new Runnable() {
+        public void run() {
+            Thread self = Thread.currentThread();
+            while (mThread == self) {
+                Pending<R> pending;
+                try {
+                    pending = mDeadlines.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (mPending.remove(pending.key, pending)) {
+                    mInFlight.decrementAndGet();
+                    mTimeouts.incrementAndGet();
+                    pending.future.fail(new TimeoutException("No reply to request " + pending.key));
+                }
+            }
+        }
+    };
+}
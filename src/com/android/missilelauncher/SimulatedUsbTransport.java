@@ -0,0 +1,506 @@
+
+package com.android.missilelauncher;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link UsbTransport} that simulates a device on a plain JVM, so the I/O
+ * code can be measured and tested without hardware.
+ * <p>
+ * Every transfer occupies a shared bus for length / bandwidth and completes
+ * a fixed latency after that, so queued requests overlap their latency the
+ * way they do on real hardware while synchronous transfers pay it every
+ * time. IN endpoints deliver packets of at most their max packet size, taken
+ * from data the test injects or, in streaming mode, generated on demand.
+ * What the device does with OUT and control transfers is up to its
+ * {@link Device}.
+ */
+public final class SimulatedUsbTransport implements UsbTransport {
+
+    /**
+     * The simulated device. Called on the thread doing the transfer.
+     */
+    public interface Device {
+        void onBulkOut(SimulatedUsbTransport transport, int endpointAddress, byte[] buffer,
+                int length);
+
+        /**
+         * @return number of bytes transferred, or -1 to stall the request.
+         */
+        int onControl(SimulatedUsbTransport transport, int requestType, int request, int value,
+                int index, byte[] buffer, int length);
+    }
+
+    private static final class Endpoint {
+        final int address;
+        final int maxPacketSize;
+        final ArrayDeque<byte[]> fifo = new ArrayDeque<byte[]>();
+        boolean streaming;
+        byte streamValue;
+
+        Endpoint(int address, int maxPacketSize) {
+            this.address = address;
+            this.maxPacketSize = maxPacketSize;
+        }
+
+        boolean isIn() {
+            return (address & 0x80) != 0;
+        }
+    }
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    private final List<Endpoint> mEndpoints = new ArrayList<Endpoint>();
+    // Requests in queue order, guarded by mLock.
+    private final List<SimulatedRequest> mQueued = new ArrayList<SimulatedRequest>();
+    private Device mDevice;
+    private long mLatencyNanos;
+    private long mBytesPerSecond;
+    private long mBusFreeAt;
+    private boolean mClosed;
+    private long mBytesIn;
+    private long mBytesOut;
+
+    /**
+     * Adds an endpoint, the direction comes from bit 7 of the address.
+     */
+    public SimulatedUsbTransport addEndpoint(int address, int maxPacketSize) {
+        mLock.lock();
+        try {
+            mEndpoints.add(new Endpoint(address, maxPacketSize));
+            return this;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public SimulatedUsbTransport setDevice(Device device) {
+        mLock.lock();
+        try {
+            mDevice = device;
+            return this;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the time from the end of a transfer on the bus to its completion.
+     */
+    public SimulatedUsbTransport setLatency(long time, TimeUnit unit) {
+        mLock.lock();
+        try {
+            mLatencyNanos = unit.toNanos(time);
+            return this;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the bus bandwidth shared by all the transfers, 0 for unlimited.
+     */
+    public SimulatedUsbTransport setBandwidth(long bytesPerSecond) {
+        mLock.lock();
+        try {
+            mBytesPerSecond = bytesPerSecond;
+            return this;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the device send data on an IN endpoint, split into packets of
+     * at most the max packet size.
+     */
+    public void injectIn(int endpointAddress, byte[] data, int offset, int length) {
+        mLock.lock();
+        try {
+            Endpoint endpoint = requireEndpoint(endpointAddress);
+            do {
+                int size = Math.min(length, endpoint.maxPacketSize);
+                byte[] packet = new byte[size];
+                System.arraycopy(data, offset, packet, 0, size);
+                endpoint.fifo.add(packet);
+                offset += size;
+                length -= size;
+            } while (length > 0);
+            schedule();
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * In streaming mode an IN endpoint has a full packet ready for every
+     * request, as fast as the bus allows.
+     */
+    public void setStreaming(int endpointAddress, boolean streaming) {
+        mLock.lock();
+        try {
+            requireEndpoint(endpointAddress).streaming = streaming;
+            schedule();
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getBytesIn() {
+        mLock.lock();
+        try {
+            return mBytesIn;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getBytesOut() {
+        mLock.lock();
+        try {
+            return mBytesOut;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int bulkTransfer(int endpointAddress, byte[] buffer, int length, int timeout) {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)
+                : Long.MAX_VALUE;
+        Device device;
+        long doneAt;
+        mLock.lock();
+        try {
+            Endpoint endpoint = findEndpoint(endpointAddress);
+            if (endpoint == null || mClosed) {
+                return -1;
+            }
+            if (endpoint.isIn()) {
+                return bulkIn(endpoint, buffer, length, deadline);
+            }
+            device = mDevice;
+            doneAt = reserveBus(length);
+            mBytesOut += length;
+        } finally {
+            mLock.unlock();
+        }
+        if (doneAt > deadline) {
+            sleepUntil(deadline);
+            return -1;
+        }
+        sleepUntil(doneAt);
+        if (device != null) {
+            device.onBulkOut(this, endpointAddress, buffer, length);
+        }
+        return length;
+    }
+
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeout) {
+        Device device;
+        long doneAt;
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return -1;
+            }
+            device = mDevice;
+            doneAt = reserveBus(length);
+        } finally {
+            mLock.unlock();
+        }
+        sleepUntil(doneAt);
+        if (device == null) {
+            return length;
+        }
+        return device.onControl(this, requestType, request, value, index, buffer, length);
+    }
+
+    public Request newRequest(int endpointAddress) {
+        mLock.lock();
+        try {
+            Endpoint endpoint = findEndpoint(endpointAddress);
+            return endpoint != null ? new SimulatedRequest(endpoint) : null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public Request requestWait() {
+        SimulatedRequest completed = null;
+        byte[] written = null;
+        Device device = null;
+        mLock.lock();
+        try {
+            while (true) {
+                if (mClosed) {
+                    return null;
+                }
+                SimulatedRequest next = null;
+                for (int i = 0; i < mQueued.size(); i++) {
+                    SimulatedRequest request = mQueued.get(i);
+                    if (request.mScheduled && (next == null || request.mDoneAt < next.mDoneAt)) {
+                        next = request;
+                    }
+                }
+                if (next == null) {
+                    mChanged.awaitUninterruptibly();
+                    continue;
+                }
+                long wait = next.mDoneAt - System.nanoTime();
+                if (wait > 0) {
+                    mChanged.awaitNanos(wait);
+                    continue;
+                }
+                mQueued.remove(next);
+                written = next.complete();
+                completed = next;
+                device = mDevice;
+                schedule();
+                break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            mLock.unlock();
+        }
+        if (written != null && device != null) {
+            device.onBulkOut(this, completed.getEndpointAddress(), written, written.length);
+        }
+        return completed;
+    }
+
+    public int getMaxPacketSize(int endpointAddress) {
+        mLock.lock();
+        try {
+            Endpoint endpoint = findEndpoint(endpointAddress);
+            return endpoint != null ? endpoint.maxPacketSize : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Called with the lock held.
+    private int bulkIn(Endpoint endpoint, byte[] buffer, int length, long deadline) {
+        while (endpoint.fifo.isEmpty() && !endpoint.streaming) {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0 || mClosed) {
+                return -1;
+            }
+            try {
+                mChanged.awaitNanos(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        int size;
+        if (endpoint.streaming) {
+            size = Math.min(length, endpoint.maxPacketSize);
+            for (int i = 0; i < size; i++) {
+                buffer[i] = endpoint.streamValue++;
+            }
+        } else {
+            byte[] packet = endpoint.fifo.poll();
+            size = Math.min(length, packet.length);
+            System.arraycopy(packet, 0, buffer, 0, size);
+        }
+        long doneAt = reserveBus(size);
+        mBytesIn += size;
+        mLock.unlock();
+        try {
+            sleepUntil(doneAt);
+        } finally {
+            mLock.lock();
+        }
+        return size;
+    }
+
+    // Gives the queued requests that can complete a completion time.
+    // Called with the lock held.
+    private void schedule() {
+        for (int i = 0; i < mQueued.size(); i++) {
+            SimulatedRequest request = mQueued.get(i);
+            if (request.mScheduled) {
+                continue;
+            }
+            Endpoint endpoint = request.mEndpoint;
+            int size;
+            if (!endpoint.isIn()) {
+                size = request.mLength;
+            } else if (!endpoint.fifo.isEmpty()) {
+                request.mData = endpoint.fifo.poll();
+                size = Math.min(request.mData.length, request.mLength);
+            } else if (endpoint.streaming) {
+                size = Math.min(request.mLength, endpoint.maxPacketSize);
+            } else {
+                continue;
+            }
+            request.mSize = size;
+            request.mDoneAt = reserveBus(size);
+            request.mScheduled = true;
+        }
+    }
+
+    // Occupies the bus for the transfer, returns when it completes.
+    // Called with the lock held.
+    private long reserveBus(int length) {
+        long now = System.nanoTime();
+        long start = Math.max(now, mBusFreeAt);
+        long onBus = mBytesPerSecond > 0 ? length * 1000000000L / mBytesPerSecond : 0;
+        mBusFreeAt = start + onBus;
+        return mBusFreeAt + mLatencyNanos;
+    }
+
+    private Endpoint findEndpoint(int address) {
+        for (int i = 0; i < mEndpoints.size(); i++) {
+            if (mEndpoints.get(i).address == address) {
+                return mEndpoints.get(i);
+            }
+        }
+        return null;
+    }
+
+    private Endpoint requireEndpoint(int address) {
+        Endpoint endpoint = findEndpoint(address);
+        if (endpoint == null) {
+            throw new IllegalArgumentException("No endpoint " + address);
+        }
+        return endpoint;
+    }
+
+    private static void sleepUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private final class SimulatedRequest implements Request {
+        final Endpoint mEndpoint;
+        private Object mClientData;
+        // Guarded by mLock while queued.
+        ByteBuffer mBuffer;
+        int mLength;
+        byte[] mData;
+        int mSize;
+        long mDoneAt;
+        boolean mScheduled;
+        boolean mCancelled;
+        // Read by the thread requestWait() returned the request to.
+        volatile int mTransferred;
+
+        SimulatedRequest(Endpoint endpoint) {
+            mEndpoint = endpoint;
+        }
+
+        public int getEndpointAddress() {
+            return mEndpoint.address;
+        }
+
+        public boolean queue(ByteBuffer buffer, int length) {
+            mLock.lock();
+            try {
+                if (mClosed || mQueued.contains(this)) {
+                    return false;
+                }
+                mBuffer = buffer;
+                mLength = length;
+                mData = null;
+                mScheduled = false;
+                mCancelled = false;
+                mTransferred = 0;
+                mQueued.add(this);
+                schedule();
+                mChanged.signalAll();
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public int getTransferredLength() {
+            return mTransferred;
+        }
+
+        public boolean cancel() {
+            mLock.lock();
+            try {
+                if (!mQueued.contains(this)) {
+                    return false;
+                }
+                if (mData != null) {
+                    // Not delivered, the device sends it again.
+                    mEndpoint.fifo.addFirst(mData);
+                    mData = null;
+                }
+                mCancelled = true;
+                mScheduled = true;
+                mDoneAt = System.nanoTime();
+                schedule();
+                mChanged.signalAll();
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public void close() {
+            cancel();
+        }
+
+        public Object getClientData() {
+            return mClientData;
+        }
+
+        public void setClientData(Object data) {
+            mClientData = data;
+        }
+
+        // Moves the data into the buffer, or out of it for OUT requests.
+        // Called with the lock held.
+        byte[] complete() {
+            if (mCancelled) {
+                return null;
+            }
+            mTransferred = mSize;
+            byte[] written = null;
+            if (mEndpoint.isIn()) {
+                if (mData != null) {
+                    mBuffer.put(mData, 0, mSize);
+                } else {
+                    for (int i = 0; i < mSize; i++) {
+                        mBuffer.put(mEndpoint.streamValue++);
+                    }
+                }
+                mBytesIn += mSize;
+            } else {
+                written = new byte[mSize];
+                mBuffer.get(written);
+                mBytesOut += mSize;
+            }
+            mData = null;
+            return written;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+
+package com.android.missilelauncher;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Polls the launcher status on its interrupt endpoint and publishes every
+ * change to the subscribers.
+ * <p>
+ * The poll rate adapts to what the launcher is doing: right after a command
+ * went out, after a change and while it fires the status is polled every
+ * {@link #FAST_INTERVAL_MS}, otherwise the interval doubles on every poll up
+ * to {@link #IDLE_INTERVAL_MS}. A change is seen at most one interval late,
+ * see {@link #getMaxDetectionDelayNanos()}.
+ */
+final class StatusMonitor implements Runnable, CommandScheduler.Listener {
+
+    /**
+     * Receives the status transitions, called on the monitor thread.
+     */
+    interface Subscriber {
+        /**
+         * @param previous status before the change, -1 for the first one.
+         * @param status the new status, the bits are the commands in
+         *            progress, see {@link StatusMonitor#isFiring(int)}.
+         */
+        void onStatusChanged(int previous, int status);
+    }
+
+    static final long FAST_INTERVAL_MS = 10;
+    static final long IDLE_INTERVAL_MS = 500;
+
+    private static final long FAST_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(FAST_INTERVAL_MS);
+    private static final long IDLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(IDLE_INTERVAL_MS);
+
+    private final CommandScheduler mCommands;
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers =
+            new CopyOnWriteArrayList<Subscriber>();
+    private UsbTransport mTransport;
+    private int mEndpointAddress;
+    private volatile Thread mThread;
+    private volatile boolean mActive;
+    private volatile int mStatus = -1;
+    private volatile long mPolls;
+    private volatile long mMaxDetectionDelay;
+    private volatile long mLastReaction;
+    private volatile long mMaxReaction;
+
+    /**
+     * @param commands sends the status requests. The monitor listens to it
+     *            to poll faster while commands are going out.
+     */
+    StatusMonitor(CommandScheduler commands) {
+        mCommands = commands;
+        commands.setListener(this);
+    }
+
+    static boolean isFiring(int status) {
+        return status >= 0 && (status & CommandScheduler.COMMAND_FIRE) != 0;
+    }
+
+    void subscribe(Subscriber subscriber) {
+        mSubscribers.add(subscriber);
+    }
+
+    void unsubscribe(Subscriber subscriber) {
+        mSubscribers.remove(subscriber);
+    }
+
+    /**
+     * Starts polling the interrupt endpoint of the transport. Stops once the
+     * transport is closed.
+     */
+    synchronized void start(UsbTransport transport, int endpointAddress) {
+        stop();
+        mTransport = transport;
+        mEndpointAddress = endpointAddress;
+        mStatus = -1;
+        Thread thread = new Thread(this, "MissileLauncher-status");
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+    }
+
+    synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return the last status, -1 if there was none yet.
+     */
+    int getStatus() {
+        return mStatus;
+    }
+
+    long getPollCount() {
+        return mPolls;
+    }
+
+    /**
+     * @return the longest time between the poll that last saw the old status
+     *         and the one that saw the change, which bounds how late a
+     *         change was noticed.
+     */
+    long getMaxDetectionDelayNanos() {
+        return mMaxDetectionDelay;
+    }
+
+    /**
+     * @return time from the status arriving to the subscribers being done
+     *         with it, for the last change.
+     */
+    long getLastReactionNanos() {
+        return mLastReaction;
+    }
+
+    long getMaxReactionNanos() {
+        return mMaxReaction;
+    }
+
+    /**
+     * Polls faster as soon as a move or a fire went out.
+     */
+    public void onCommandSent(int command) {
+        if (command != CommandScheduler.COMMAND_STATUS) {
+            mActive = true;
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    public void run() {
+        Thread self = Thread.currentThread();
+        UsbTransport transport = mTransport;
+        UsbTransport.Request request = transport.newRequest(mEndpointAddress);
+        if (request == null) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        long interval = FAST_INTERVAL_NANOS;
+        long lastPoll = System.nanoTime();
+        try {
+            while (mThread == self) {
+                // queue a request on the interrupt endpoint
+                buffer.clear();
+                request.queue(buffer, 1);
+                // send poll status command
+                mCommands.submit(CommandScheduler.COMMAND_STATUS);
+                // wait for status event
+                if (transport.requestWait() != request) {
+                    break;
+                }
+                long now = System.nanoTime();
+                mPolls++;
+                int status = buffer.get(0) & 0xff;
+                int previous = mStatus;
+                if (status != previous) {
+                    mStatus = status;
+                    if (previous >= 0 && now - lastPoll > mMaxDetectionDelay) {
+                        mMaxDetectionDelay = now - lastPoll;
+                    }
+                    for (Subscriber subscriber : mSubscribers) {
+                        subscriber.onStatusChanged(previous, status);
+                    }
+                    long reaction = System.nanoTime() - now;
+                    mLastReaction = reaction;
+                    if (reaction > mMaxReaction) {
+                        mMaxReaction = reaction;
+                    }
+                    interval = FAST_INTERVAL_NANOS;
+                } else if (isFiring(status)) {
+                    interval = FAST_INTERVAL_NANOS;
+                } else {
+                    interval = Math.min(interval * 2, IDLE_INTERVAL_NANOS);
+                }
+                if (mActive) {
+                    mActive = false;
+                    interval = FAST_INTERVAL_NANOS;
+                }
+                lastPoll = now;
+
+                // A command that goes out while waiting cuts the wait short.
+                long deadline = now + interval;
+                long wait;
+                while (mThread == self && !mActive
+                        && (wait = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+        } finally {
+            request.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+
+package com.android.missilelauncher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends the traffic of a connection to a file as it happens, for
+ * {@link TrafficReplayer} to play back later.
+ * <p>
+ * The file is written through a memory mapping that grows a chunk at a
+ * time, so recording a frame is a few stores into the page cache: no system
+ * call, no allocation. Frames are written by whichever thread did the
+ * transfer.
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes: the magic,
+ * the version, the chunk size and the wall clock time of the start. Every
+ * frame is {@link #FRAME_HEADER_SIZE} bytes of header followed by its data:
+ * <pre>
+ * long   nanoseconds since the start
+ * byte   type, one of TYPE_BULK, TYPE_CONTROL, TYPE_REQUEST
+ * byte   endpoint address, or request type of a control transfer
+ * byte   request of a control transfer
+ * byte   unused
+ * short  value of a control transfer
+ * short  index of a control transfer
+ * int    result of the transfer, bytes transferred or -1
+ * int    number of data bytes that follow
+ * </pre>
+ * Frames never cross a chunk boundary, a frame type of 0 means the rest of
+ * the chunk is unused.
+ */
+final class TrafficCapture {
+    static final int MAGIC = 0x4d4c4331; // "MLC1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 20;
+    static final int FRAME_HEADER_SIZE = 24;
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /** Synchronous bulk transfer. */
+    static final byte TYPE_BULK = 1;
+    /** Control transfer on endpoint 0. */
+    static final byte TYPE_CONTROL = 2;
+    /** Queued request returned by requestWait(). */
+    static final byte TYPE_REQUEST = 3;
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final int mChunkSize;
+    private final long mStart = System.nanoTime();
+    // Guarded by this.
+    private MappedByteBuffer mChunk;
+    private long mChunkBase;
+    private boolean mClosed;
+    private long mFrames;
+    private long mDropped;
+
+    /**
+     * Creates the file, replacing any file of that name.
+     *
+     * @param chunkSize bytes mapped at a time, also the largest frame.
+     */
+    TrafficCapture(File file, int chunkSize) throws IOException {
+        if (chunkSize < HEADER_SIZE + FRAME_HEADER_SIZE) {
+            throw new IllegalArgumentException("chunkSize too small");
+        }
+        mFile = file;
+        mChunkSize = chunkSize;
+        mRaf = new RandomAccessFile(file, "rw");
+        mRaf.setLength(0);
+        mChannel = mRaf.getChannel();
+        mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, chunkSize);
+        mChunk.putInt(MAGIC);
+        mChunk.putShort((short) VERSION);
+        mChunk.putShort((short) 0);
+        mChunk.putInt(chunkSize);
+        mChunk.putLong(System.currentTimeMillis());
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Records a synchronous bulk transfer.
+     *
+     * @param length bytes of the buffer that were offered to the transfer.
+     */
+    void bulk(int address, byte[] buffer, int length, int result) {
+        // What went out is what we offered, what came in is what we got.
+        int stored = (address & 0x80) != 0 ? Math.max(result, 0) : length;
+        append(TYPE_BULK, address, 0, 0, 0, result, buffer, stored);
+    }
+
+    void control(int requestType, int request, int value, int index, byte[] buffer,
+            int length, int result) {
+        int stored = (requestType & 0x80) != 0 ? Math.max(result, 0) : length;
+        append(TYPE_CONTROL, requestType, request, value, index, result,
+                buffer != null ? buffer : NO_DATA, buffer != null ? stored : 0);
+    }
+
+    /**
+     * Records a request that requestWait() returned, with the bytes from 0
+     * to the given length of its buffer.
+     */
+    synchronized void request(int address, ByteBuffer buffer, int length) {
+        if (!reserve(length)) {
+            return;
+        }
+        putFrameHeader(TYPE_REQUEST, address, 0, 0, 0, length, length);
+        if (buffer.hasArray()) {
+            mChunk.put(buffer.array(), buffer.arrayOffset(), length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                mChunk.put(buffer.get(i));
+            }
+        }
+        mFrames++;
+    }
+
+    /**
+     * @return number of frames written.
+     */
+    synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return number of frames lost because they did not fit in a chunk or
+     *         the file could not grow.
+     */
+    synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Stops recording and cuts the file down to what was written.
+     */
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mChunk.force();
+            mChannel.truncate(mChunkBase + mChunk.position());
+            mRaf.close();
+        } catch (IOException e) {
+            mDropped++;
+        }
+    }
+
+    private synchronized void append(byte type, int address, int request, int value,
+            int index, int result, byte[] data, int length) {
+        if (!reserve(length)) {
+            return;
+        }
+        putFrameHeader(type, address, request, value, index, result, length);
+        mChunk.put(data, 0, length);
+        mFrames++;
+    }
+
+    private void putFrameHeader(byte type, int address, int request, int value, int index,
+            int result, int length) {
+        mChunk.putLong(System.nanoTime() - mStart);
+        mChunk.put(type);
+        mChunk.put((byte) address);
+        mChunk.put((byte) request);
+        mChunk.put((byte) 0);
+        mChunk.putShort((short) value);
+        mChunk.putShort((short) index);
+        mChunk.putInt(result);
+        mChunk.putInt(length);
+    }
+
+    // Makes room for a frame with that much data, mapping the next chunk if
+    // this one is full.
+    private boolean reserve(int length) {
+        int size = FRAME_HEADER_SIZE + length;
+        if (mClosed || size > mChunkSize) {
+            mDropped++;
+            return false;
+        }
+        if (mChunk.remaining() >= size) {
+            return true;
+        }
+        try {
+            // The unused end of the chunk is left zero, which reads as type 0.
+            long base = mChunkBase + mChunkSize;
+            mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE, base, mChunkSize);
+            mChunkBase = base;
+            return true;
+        } catch (IOException e) {
+            mDropped++;
+            return false;
+        }
+    }
+}
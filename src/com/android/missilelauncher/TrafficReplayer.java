@@ -0,0 +1,242 @@
+
+package com.android.missilelauncher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link TrafficCapture} back as the device behind a
+ * {@link SimulatedUsbTransport}, so a recorded session can be run again
+ * against the code under test.
+ * <p>
+ * What the device sent, the data of bulk and request frames on IN
+ * endpoints, is injected into the transport by {@link #run()}, either at
+ * the recorded times or as fast as the code takes it. What the host sends is
+ * checked against the recording: each OUT or control transfer is compared
+ * with the next recorded one of its endpoint, and control transfers return
+ * the recorded result and data, so status reads see what the device said
+ * back then.
+ */
+final class TrafficReplayer implements Runnable, SimulatedUsbTransport.Device {
+    // Slot of the control transfers in mCursors, after the 256 addresses.
+    private static final int CONTROL = 256;
+
+    private final ByteBuffer mCapture;
+    private final SimulatedUsbTransport mTransport;
+    private final boolean mRealTime;
+    private final int mChunkSize;
+    // Where each endpoint looks for its next recorded transfer, guarded by this.
+    private final int[] mCursors = new int[CONTROL + 1];
+    private final byte[] mData;
+    private volatile boolean mStopped;
+    private volatile long mInjected;
+    private long mMatched;
+    private long mMismatched;
+    private long mUnexpected;
+
+    /**
+     * @param capture the capture file, as written by TrafficCapture.
+     * @param transport replays the device of the capture, the replayer
+     *            becomes its device.
+     * @param realTime true to inject at the recorded times, false to inject
+     *            everything right away.
+     */
+    TrafficReplayer(ByteBuffer capture, SimulatedUsbTransport transport, boolean realTime) {
+        if (capture.getInt(0) != TrafficCapture.MAGIC
+                || capture.getShort(4) != TrafficCapture.VERSION) {
+            throw new IllegalArgumentException("Not a capture");
+        }
+        mCapture = capture;
+        mTransport = transport;
+        mRealTime = realTime;
+        mChunkSize = capture.getInt(8);
+        mData = new byte[mChunkSize];
+        for (int i = 0; i < mCursors.length; i++) {
+            mCursors[i] = TrafficCapture.HEADER_SIZE;
+        }
+        transport.setDevice(this);
+    }
+
+    /**
+     * Maps a capture file.
+     */
+    static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Injects the IN frames of the capture, returns after the last one.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        for (int frame = next(TrafficCapture.HEADER_SIZE); frame >= 0 && !mStopped;
+                frame = next(frame + size(frame))) {
+            int address = address(frame);
+            int length = length(frame);
+            byte type = type(frame);
+            if (type == TrafficCapture.TYPE_CONTROL || (address & 0x80) == 0 || length <= 0) {
+                continue;
+            }
+            if (mRealTime) {
+                long deadline = start + mCapture.getLong(frame);
+                long remaining;
+                while (!mStopped && (remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                }
+            }
+            // injectIn copies, so one scratch array serves every frame.
+            copyData(frame, mData);
+            mTransport.injectIn(address, mData, 0, length);
+            mInjected++;
+        }
+    }
+
+    void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * @return number of IN frames injected.
+     */
+    long getInjectedCount() {
+        return mInjected;
+    }
+
+    /**
+     * @return OUT and control transfers that matched the recording.
+     */
+    synchronized long getMatchedCount() {
+        return mMatched;
+    }
+
+    /**
+     * @return OUT and control transfers whose data or setup differed from
+     *         the next recorded one.
+     */
+    synchronized long getMismatchedCount() {
+        return mMismatched;
+    }
+
+    /**
+     * @return OUT and control transfers past the end of the recording.
+     */
+    synchronized long getUnexpectedCount() {
+        return mUnexpected;
+    }
+
+    public synchronized void onBulkOut(SimulatedUsbTransport transport, int endpointAddress,
+            byte[] buffer, int length) {
+        int frame = nextOut(endpointAddress & 0xff, endpointAddress);
+        if (frame < 0) {
+            mUnexpected++;
+        } else if (sameData(frame, buffer, length)) {
+            mMatched++;
+        } else {
+            mMismatched++;
+        }
+    }
+
+    public synchronized int onControl(SimulatedUsbTransport transport, int requestType,
+            int request, int value, int index, byte[] buffer, int length) {
+        int frame = nextOut(CONTROL, -1);
+        if (frame < 0) {
+            mUnexpected++;
+            return -1;
+        }
+        boolean sameSetup = address(frame) == (requestType & 0xff)
+                && (mCapture.get(frame + 10) & 0xff) == (request & 0xff)
+                && mCapture.getShort(frame + 12) == (short) value
+                && mCapture.getShort(frame + 14) == (short) index;
+        boolean in = (requestType & 0x80) != 0;
+        if (!sameSetup || (!in && !sameData(frame, buffer, length))) {
+            mMismatched++;
+        } else {
+            mMatched++;
+        }
+        if (in && buffer != null) {
+            int recorded = Math.min(length(frame), length);
+            for (int i = 0; i < recorded; i++) {
+                buffer[i] = mCapture.get(frame + TrafficCapture.FRAME_HEADER_SIZE + i);
+            }
+        }
+        return result(frame);
+    }
+
+    // Finds the next recorded transfer to the host side of the slot and moves
+    // the cursor of the slot past it, address -1 for control transfers.
+    private int nextOut(int slot, int address) {
+        for (int frame = next(mCursors[slot]); frame >= 0; frame = next(frame + size(frame))) {
+            boolean match = address < 0
+                    ? type(frame) == TrafficCapture.TYPE_CONTROL
+                    : type(frame) == TrafficCapture.TYPE_BULK && address(frame) == address;
+            if (match) {
+                mCursors[slot] = frame + size(frame);
+                return frame;
+            }
+        }
+        mCursors[slot] = mCapture.limit();
+        return -1;
+    }
+
+    // The frame at or after the offset, skipping the unused ends of chunks,
+    // -1 at the end of the capture.
+    private int next(int offset) {
+        while (offset + TrafficCapture.FRAME_HEADER_SIZE <= mCapture.limit()) {
+            int inChunk = offset % mChunkSize;
+            if (inChunk + TrafficCapture.FRAME_HEADER_SIZE <= mChunkSize && type(offset) != 0) {
+                return offset;
+            }
+            offset += mChunkSize - inChunk;
+        }
+        return -1;
+    }
+
+    private int size(int frame) {
+        return TrafficCapture.FRAME_HEADER_SIZE + length(frame);
+    }
+
+    private byte type(int frame) {
+        return mCapture.get(frame + 8);
+    }
+
+    private int address(int frame) {
+        return mCapture.get(frame + 9) & 0xff;
+    }
+
+    private int result(int frame) {
+        return mCapture.getInt(frame + 16);
+    }
+
+    private int length(int frame) {
+        return mCapture.getInt(frame + 20);
+    }
+
+    private void copyData(int frame, byte[] data) {
+        int base = frame + TrafficCapture.FRAME_HEADER_SIZE;
+        for (int i = length(frame) - 1; i >= 0; i--) {
+            data[i] = mCapture.get(base + i);
+        }
+    }
+
+    private boolean sameData(int frame, byte[] buffer, int length) {
+        if (length(frame) != length) {
+            return false;
+        }
+        int base = frame + TrafficCapture.FRAME_HEADER_SIZE;
+        for (int i = 0; i < length; i++) {
+            if (mCapture.get(base + i) != buffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
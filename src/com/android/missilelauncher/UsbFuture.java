@@ -0,0 +1,237 @@
+
+package com.android.missilelauncher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an operation that completes on one of the I/O threads. Callers
+ * can block on it with get() or register a callback that runs on the thread
+ * that completes it.
+ */
+public final class UsbFuture<V> implements Future<V> {
+
+    /**
+     * Called once the future is done. Runs on the completing thread, or
+     * right away on the registering thread if the future is already done.
+     */
+    public interface Callback<V> {
+        void onSuccess(V value);
+
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * The next step of a chain, see {@link UsbFuture#then(Continuation)}.
+     */
+    public interface Continuation<V, R> {
+        /**
+         * @return future of the result of the step, null if it has none.
+         */
+        UsbFuture<R> apply(V value) throws Exception;
+    }
+
+    private V mValue;
+    private Throwable mError;
+    private boolean mDone;
+    private boolean mCancelled;
+    private List<Callback<V>> mCallbacks;
+
+    /**
+     * @return a future that is already completed with the value.
+     */
+    public static <V> UsbFuture<V> completed(V value) {
+        UsbFuture<V> future = new UsbFuture<V>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * @return a future that has already failed with the error.
+     */
+    public static <V> UsbFuture<V> failed(Throwable error) {
+        UsbFuture<V> future = new UsbFuture<V>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * Completes the future with a value.
+     *
+     * @return false if the future was already done.
+     */
+    public boolean complete(V value) {
+        List<Callback<V>> callbacks;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mValue = value;
+            mDone = true;
+            callbacks = takeCallbacks();
+        }
+        if (callbacks != null) {
+            for (Callback<V> callback : callbacks) {
+                callback.onSuccess(value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fails the future with an error.
+     *
+     * @return false if the future was already done.
+     */
+    public boolean fail(Throwable error) {
+        List<Callback<V>> callbacks;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mError = error;
+            mDone = true;
+            callbacks = takeCallbacks();
+        }
+        if (callbacks != null) {
+            for (Callback<V> callback : callbacks) {
+                callback.onFailure(error);
+            }
+        }
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        CancellationException error = new CancellationException();
+        List<Callback<V>> callbacks;
+        synchronized (this) {
+            // All at once, a complete() in between would leave a value in a
+            // cancelled future.
+            if (mDone) {
+                return false;
+            }
+            mCancelled = true;
+            mError = error;
+            mDone = true;
+            callbacks = takeCallbacks();
+        }
+        if (callbacks != null) {
+            for (Callback<V> callback : callbacks) {
+                callback.onFailure(error);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Registers a callback that runs once the future is done.
+     */
+    public void addCallback(Callback<V> callback) {
+        synchronized (this) {
+            if (!mDone) {
+                if (mCallbacks == null) {
+                    mCallbacks = new ArrayList<Callback<V>>(2);
+                }
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        if (mError != null) {
+            callback.onFailure(mError);
+        } else {
+            callback.onSuccess(mValue);
+        }
+    }
+
+    /**
+     * Runs the next step once this future succeeded, on the completing
+     * thread. A failure, of this future or of the step, skips the steps
+     * after it.
+     *
+     * @return future that completes with the result of the step.
+     */
+    public <R> UsbFuture<R> then(final Continuation<? super V, R> next) {
+        final UsbFuture<R> result = new UsbFuture<R>();
+        addCallback(new Callback<V>() {
+            public void onSuccess(V value) {
+                UsbFuture<R> step;
+                try {
+                    step = next.apply(value);
+                } catch (Exception e) {
+                    result.fail(e);
+                    return;
+                }
+                if (step == null) {
+                    result.complete(null);
+                    return;
+                }
+                step.addCallback(new Callback<R>() {
+                    public void onSuccess(R value) {
+                        result.complete(value);
+                    }
+
+                    public void onFailure(Throwable error) {
+                        result.fail(error);
+                    }
+                });
+            }
+
+            public void onFailure(Throwable error) {
+                result.fail(error);
+            }
+        });
+        return result;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    // Called with the lock held once the future is done.
+    private V result() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mValue;
+    }
+
+    // Called with the lock held, wakes up the waiters.
+    private List<Callback<V>> takeCallbacks() {
+        notifyAll();
+        List<Callback<V>> callbacks = mCallbacks;
+        mCallbacks = null;
+        return callbacks;
+    }
+}
@@ -0,0 +1,257 @@
+
+package com.android.missilelauncher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logger for the USB hot path. Callers only fill a preallocated record: the
+ * message is a reference, numbers are stored as they are and packet bytes
+ * are hex encoded into the record's own buffer. Building the lines and
+ * handing them to the {@link Sink} is left to a background drain thread, so
+ * tracing every packet costs next to nothing on the I/O threads.
+ * <p>
+ * Records below the level are skipped before anything is copied. Setting
+ * {@link #ENABLED} to false strips the calls at compile time. When the
+ * drain falls behind, new records are dropped and counted.
+ */
+final class UsbLog {
+
+    // Compile-time switch, guard calls with it to strip them from the build.
+    static final boolean ENABLED = true;
+
+    // Same values as android.util.Log.
+    static final int VERBOSE = 2;
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+
+    /**
+     * Receives the formatted lines on the drain thread.
+     */
+    interface Sink {
+        void write(int level, String tag, String line);
+    }
+
+    // Bytes of a packet that are kept, the rest is cut off.
+    static final int MAX_PAYLOAD_BYTES = 64;
+    static final int DEFAULT_CAPACITY = 256;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final class Record {
+        final char[] hex = new char[MAX_PAYLOAD_BYTES * 3];
+        int level;
+        String message;
+        long value;
+        boolean hasValue;
+        int endpoint;
+        int length;
+        int hexLength;
+    }
+
+    private final String mTag;
+    private final Sink mSink;
+    private final BoundedQueue<Record> mFree;
+    private final BoundedQueue<Record> mPending;
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile int mLevel = DEBUG;
+    // The drain thread, null once stopped. A thread that is no longer it
+    // writes what is pending and ends.
+    private volatile Thread mThread;
+    // The drain thread while it is about to park, the producers only pay
+    // for an unpark then.
+    private final AtomicReference<Thread> mIdle = new AtomicReference<Thread>();
+
+    /**
+     * @param tag passed to the sink with every line.
+     * @param sink receives the formatted lines.
+     * @param capacity number of records that may wait for the drain.
+     */
+    UsbLog(String tag, Sink sink, int capacity) {
+        mTag = tag;
+        mSink = sink;
+        mFree = new BoundedQueue<Record>(capacity, BoundedQueue.OverflowPolicy.DROP_NEWEST, null);
+        mPending = new BoundedQueue<Record>(capacity, BoundedQueue.OverflowPolicy.DROP_NEWEST,
+                null);
+        for (int i = 0; i < mFree.capacity(); i++) {
+            mFree.offer(new Record());
+        }
+    }
+
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                drainLoop(Thread.currentThread());
+            }
+        }, mTag + "-log");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops the drain thread once the pending records are written.
+     */
+    synchronized void stop() {
+        Thread thread = mThread;
+        if (thread != null) {
+            mThread = null;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    void setLevel(int level) {
+        mLevel = level;
+    }
+
+    int getLevel() {
+        return mLevel;
+    }
+
+    boolean isLoggable(int level) {
+        return ENABLED && level >= mLevel;
+    }
+
+    /**
+     * @return number of records dropped because the drain fell behind.
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    void log(int level, String message) {
+        Record record = obtain(level, message);
+        if (record != null) {
+            append(record);
+        }
+    }
+
+    void log(int level, String message, long value) {
+        Record record = obtain(level, message);
+        if (record != null) {
+            record.value = value;
+            record.hasValue = true;
+            append(record);
+        }
+    }
+
+    /**
+     * Logs the first length bytes of the array.
+     */
+    void packet(int level, String message, int endpoint, byte[] bytes, int length) {
+        Record record = obtain(level, message);
+        if (record != null) {
+            record.endpoint = endpoint;
+            record.length = length;
+            int count = Math.min(length, MAX_PAYLOAD_BYTES);
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                j = hex(record.hex, j, bytes[i]);
+            }
+            record.hexLength = j;
+            append(record);
+        }
+    }
+
+    /**
+     * Logs a received packet.
+     */
+    void packet(int level, String message, Packet packet) {
+        Record record = obtain(level, message);
+        if (record != null) {
+            record.endpoint = packet.getEndpointAddress();
+            record.length = packet.getLength();
+            int count = Math.min(record.length, MAX_PAYLOAD_BYTES);
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                j = hex(record.hex, j, packet.get(i));
+            }
+            record.hexLength = j;
+            append(record);
+        }
+    }
+
+    private Record obtain(int level, String message) {
+        if (!isLoggable(level)) {
+            return null;
+        }
+        Record record = mFree.poll();
+        if (record == null) {
+            mDropped.incrementAndGet();
+            return null;
+        }
+        record.level = level;
+        record.message = message;
+        record.hasValue = false;
+        record.endpoint = -1;
+        record.length = 0;
+        record.hexLength = 0;
+        return record;
+    }
+
+    private void append(Record record) {
+        mPending.offer(record);
+        Thread idle = mIdle.get();
+        if (idle != null) {
+            LockSupport.unpark(idle);
+        }
+    }
+
+    private static int hex(char[] out, int index, byte b) {
+        out[index] = HEX[(b >> 4) & 0xf];
+        out[index + 1] = HEX[b & 0xf];
+        out[index + 2] = ' ';
+        return index + 3;
+    }
+
+    private void drainLoop(Thread self) {
+        StringBuilder line = new StringBuilder(MAX_PAYLOAD_BYTES * 3 + 80);
+        while (true) {
+            Record record = mPending.poll();
+            if (record == null) {
+                if (mThread != self) {
+                    return;
+                }
+                // Look once more after raising the flag, a record queued
+                // before it was seen would not unpark the thread.
+                mIdle.set(self);
+                record = mPending.poll();
+                if (record == null && mThread == self) {
+                    LockSupport.park(this);
+                }
+                mIdle.compareAndSet(self, null);
+                if (record == null) {
+                    continue;
+                }
+            }
+            String text = format(line, record);
+            int level = record.level;
+            record.message = null;
+            mFree.offer(record);
+            mSink.write(level, mTag, text);
+        }
+    }
+
+    private String format(StringBuilder line, Record record) {
+        line.setLength(0);
+        if (record.endpoint >= 0) {
+            line.append("EP:").append(record.endpoint).append(' ');
+        }
+        line.append(record.message);
+        if (record.hasValue) {
+            line.append(' ').append(record.value);
+        }
+        if (record.endpoint >= 0) {
+            line.append(" len=").append(record.length).append(": ");
+            line.append(record.hex, 0, record.hexLength);
+            if (record.length > MAX_PAYLOAD_BYTES) {
+                line.append("...");
+            }
+        }
+        return line.toString();
+    }
+}
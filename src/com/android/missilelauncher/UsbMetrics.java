@@ -0,0 +1,245 @@
+
+package com.android.missilelauncher;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of one device, fed by a {@link MetricsTransport}
+ * and by the code that swallows exceptions on its behalf.
+ */
+public final class UsbMetrics {
+
+    /**
+     * Traffic of one endpoint. Control transfers count on endpoint 0.
+     */
+    public static final class Endpoint {
+        final AtomicLong mBytesIn = new AtomicLong();
+        final AtomicLong mBytesOut = new AtomicLong();
+        final AtomicLong mPacketsIn = new AtomicLong();
+        final AtomicLong mPacketsOut = new AtomicLong();
+        final AtomicLong mTimeouts = new AtomicLong();
+        final AtomicLong mErrors = new AtomicLong();
+
+        public long getBytesIn() {
+            return mBytesIn.get();
+        }
+
+        public long getBytesOut() {
+            return mBytesOut.get();
+        }
+
+        public long getPacketsIn() {
+            return mPacketsIn.get();
+        }
+
+        public long getPacketsOut() {
+            return mPacketsOut.get();
+        }
+
+        /**
+         * @return transfers that failed after waiting the whole timeout.
+         */
+        public long getTimeouts() {
+            return mTimeouts.get();
+        }
+
+        /**
+         * @return transfers that returned -1 before their timeout.
+         */
+        public long getErrors() {
+            return mErrors.get();
+        }
+
+        @Override
+        public String toString() {
+            return "in " + getBytesIn() + " B/" + getPacketsIn() + " out " + getBytesOut()
+                    + " B/" + getPacketsOut() + " timeouts " + getTimeouts() + " errors "
+                    + getErrors();
+        }
+    }
+
+    private final String mName;
+    private final ConcurrentHashMap<Integer, Endpoint> mEndpoints =
+            new ConcurrentHashMap<Integer, Endpoint>();
+    private final LatencyHistogram mBulkTransfer = new LatencyHistogram();
+    private final LatencyHistogram mControlTransfer = new LatencyHistogram();
+    private final LatencyHistogram mRequestWait = new LatencyHistogram();
+    private final AtomicLong mExceptions = new AtomicLong();
+    private volatile String mLastException;
+    // When the device was seen, and whether its first command is still to
+    // come.
+    private volatile long mAttachedAt;
+    private volatile boolean mAwaitingCommand;
+    private volatile long mTimeToReady = -1;
+    private volatile long mTimeToFirstCommand = -1;
+
+    UsbMetrics(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the counters of the endpoint, created on first use.
+     */
+    public Endpoint endpoint(int address) {
+        Endpoint endpoint = mEndpoints.get(address);
+        if (endpoint == null) {
+            Endpoint created = new Endpoint();
+            endpoint = mEndpoints.putIfAbsent(address, created);
+            if (endpoint == null) {
+                endpoint = created;
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * @return the endpoints seen so far by address, in address order.
+     */
+    public Map<Integer, Endpoint> getEndpoints() {
+        return new TreeMap<Integer, Endpoint>(mEndpoints);
+    }
+
+    /**
+     * @return round trips of synchronous bulk transfers.
+     */
+    public LatencyHistogram getBulkTransferLatency() {
+        return mBulkTransfer;
+    }
+
+    public LatencyHistogram getControlTransferLatency() {
+        return mControlTransfer;
+    }
+
+    /**
+     * @return time from queuing a request to requestWait() returning it.
+     */
+    public LatencyHistogram getRequestWaitLatency() {
+        return mRequestWait;
+    }
+
+    /**
+     * Counts an exception that was caught and not rethrown.
+     */
+    void recordException(Throwable e) {
+        mExceptions.incrementAndGet();
+        mLastException = e.toString();
+    }
+
+    public long getExceptionCount() {
+        return mExceptions.get();
+    }
+
+    /**
+     * @return the last swallowed exception, null if there was none.
+     */
+    public String getLastException() {
+        return mLastException;
+    }
+
+    /**
+     * Starts the startup clock: the device was attached with permission, or
+     * the permission was granted.
+     */
+    void recordAttached(long nanos) {
+        mAttachedAt = nanos;
+        mAwaitingCommand = true;
+        mTimeToReady = -1;
+        mTimeToFirstCommand = -1;
+    }
+
+    /**
+     * The launcher of the device is running.
+     */
+    void recordReady(long nanos) {
+        long attachedAt = mAttachedAt;
+        if (attachedAt != 0) {
+            mTimeToReady = nanos - attachedAt;
+        }
+    }
+
+    /**
+     * @return time from the device being seen to its launcher running, -1
+     *         if unknown.
+     */
+    public long getTimeToReadyNanos() {
+        return mTimeToReady;
+    }
+
+    /**
+     * @return time from the device being seen to the first command it
+     *         took, -1 if unknown.
+     */
+    public long getTimeToFirstCommandNanos() {
+        return mTimeToFirstCommand;
+    }
+
+    /**
+     * Counts a finished transfer.
+     *
+     * @param in true if the data went to the host.
+     * @param result bytes transferred or -1.
+     * @param timeoutMs timeout of the transfer, 0 if it had none.
+     */
+    void recordTransfer(int address, boolean in, int result, long nanos, int timeoutMs) {
+        Endpoint endpoint = endpoint(address);
+        if (result >= 0) {
+            if (in) {
+                endpoint.mBytesIn.addAndGet(result);
+                endpoint.mPacketsIn.incrementAndGet();
+            } else {
+                endpoint.mBytesOut.addAndGet(result);
+                endpoint.mPacketsOut.incrementAndGet();
+            }
+        } else if (timeoutMs > 0 && nanos >= timeoutMs * 1000000L) {
+            endpoint.mTimeouts.incrementAndGet();
+        } else {
+            endpoint.mErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * The launcher took a command, only the first one after the device was
+     * seen counts. Status polls are no commands, they start on their own.
+     */
+    void recordCommand(long nanos) {
+        if (mAwaitingCommand) {
+            mAwaitingCommand = false;
+            mTimeToFirstCommand = nanos - mAttachedAt;
+        }
+    }
+
+    /**
+     * Appends a few lines with everything above, for the overlay and logs.
+     */
+    void dump(StringBuilder out) {
+        out.append(mName).append('\n');
+        for (Map.Entry<Integer, Endpoint> entry : getEndpoints().entrySet()) {
+            out.append("  EP 0x").append(Integer.toHexString(entry.getKey())).append(' ')
+                    .append(entry.getValue()).append('\n');
+        }
+        out.append("  bulk ").append(mBulkTransfer).append('\n');
+        out.append("  control ").append(mControlTransfer).append('\n');
+        out.append("  requestWait ").append(mRequestWait).append('\n');
+        if (mTimeToReady >= 0) {
+            out.append("  ready in ").append(mTimeToReady / 1000).append(" us");
+            if (mTimeToFirstCommand >= 0) {
+                out.append(", first command in ").append(mTimeToFirstCommand / 1000)
+                        .append(" us");
+            }
+            out.append('\n');
+        }
+        out.append("  exceptions ").append(getExceptionCount());
+        String last = mLastException;
+        if (last != null) {
+            out.append(", last ").append(last);
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,65 @@
+
+package com.android.missilelauncher;
+
+/**
+ * Long-lived connection to a device with its interface claimed. The session
+ * is opened once and shared by the reader and the writers: reads are queued
+ * requests completed on the reader thread, writes are synchronous bulk
+ * transfers on the caller's thread, and the two run side by side on the same
+ * transport.
+ */
+final class UsbSession {
+    private final UsbTransport mTransport;
+    private volatile boolean mClosed;
+
+    UsbSession(UsbTransport transport) {
+        mTransport = transport;
+    }
+
+    UsbTransport getTransport() {
+        return mTransport;
+    }
+
+    boolean isOpen() {
+        return !mClosed;
+    }
+
+    /**
+     * Writes to a bulk OUT endpoint. Safe to call while the reader is
+     * waiting for IN requests on the same transport.
+     *
+     * @return number of bytes written, or -1 on failure or once closed.
+     */
+    int bulkWrite(int endpointAddress, byte[] bytes, int length, int timeout) {
+        if (mClosed) {
+            return -1;
+        }
+        return mTransport.bulkTransfer(endpointAddress, bytes, length, timeout);
+    }
+
+    /**
+     * Sends a control request on endpoint zero.
+     *
+     * @return number of bytes transferred, or -1 on failure or once closed.
+     */
+    int controlTransfer(int requestType, int request, int value, int index, byte[] buffer,
+            int length, int timeout) {
+        if (mClosed) {
+            return -1;
+        }
+        return mTransport.controlTransfer(requestType, request, value, index, buffer, length,
+                timeout);
+    }
+
+    /**
+     * Releases the interface and closes the connection. Pending reads return
+     * from requestWait() with null.
+     */
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mTransport.close();
+    }
+}
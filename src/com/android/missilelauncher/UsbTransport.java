@@ -0,0 +1,82 @@
+
+package com.android.missilelauncher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Connection to a USB device with its interface claimed. This is all the I/O
+ * code needs from the bus: synchronous bulk and control transfers and
+ * queued requests completed through {@link #requestWait()}, the same model
+ * as UsbDeviceConnection. Endpoints are identified by their address.
+ * <p>
+ * {@link AndroidUsbTransport} talks to a real device,
+ * {@link SimulatedUsbTransport} simulates one on a plain JVM.
+ */
+public interface UsbTransport {
+
+    /**
+     * A request that is queued on an endpoint and completed by
+     * {@link UsbTransport#requestWait()}, like UsbRequest.
+     */
+    interface Request {
+        int getEndpointAddress();
+
+        /**
+         * Queues the request. Once it completes, the buffer position is the
+         * number of bytes transferred, if the backend reports it.
+         */
+        boolean queue(ByteBuffer buffer, int length);
+
+        /**
+         * @return number of bytes the completed request transferred, 0 for
+         *         a zero-length packet. Backends that do not report it give
+         *         the length the request was queued with.
+         */
+        int getTransferredLength();
+
+        boolean cancel();
+
+        void close();
+
+        Object getClientData();
+
+        void setClientData(Object data);
+    }
+
+    /**
+     * @return number of bytes transferred, or -1 on failure.
+     */
+    int bulkTransfer(int endpointAddress, byte[] buffer, int length, int timeout);
+
+    /**
+     * Sends a request on endpoint zero.
+     *
+     * @return number of bytes transferred, or -1 on failure.
+     */
+    int controlTransfer(int requestType, int request, int value, int index, byte[] buffer,
+            int length, int timeout);
+
+    /**
+     * @return a new request for the endpoint, or null if it cannot be
+     *         created.
+     */
+    Request newRequest(int endpointAddress);
+
+    /**
+     * Blocks until one of the queued requests of this transport completes.
+     *
+     * @return the completed request, or null on error or once closed.
+     */
+    Request requestWait();
+
+    /**
+     * @return max packet size of the endpoint, or 0 if there is no such
+     *         endpoint.
+     */
+    int getMaxPacketSize(int endpointAddress);
+
+    /**
+     * Releases the interface and closes the connection.
+     */
+    void close();
+}
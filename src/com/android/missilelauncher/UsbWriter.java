@@ -0,0 +1,240 @@
+
+package com.android.missilelauncher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes to the device from a dedicated thread. Callers queue their payloads
+ * and get a future back, so they never block on the bus. While draining the
+ * queue the writer packs small pending payloads into a single transfer of up
+ * to the max packet size, so bursts of short commands go out in a few
+ * transactions instead of one per command.
+ * <p>
+ * The transfers themselves are left to a {@link Sink}, normally a
+ * {@link FanOutWriter} that writes to all the endpoints in parallel.
+ */
+final class UsbWriter implements Runnable {
+
+    /**
+     * Performs the actual transfers on the writer thread. The future may be
+     * completed before the call returns, but the buffer is reused as soon as
+     * it does.
+     */
+    interface Sink {
+        // Same bytes to every endpoint, done once quorum endpoints succeeded.
+        void broadcast(byte[] buffer, int length, int quorum, UsbFuture<WriteResult> result);
+
+        // Payload split across the endpoints.
+        void stripe(byte[] buffer, int length, UsbFuture<WriteResult> result);
+    }
+
+    static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private static final class PendingWrite {
+        final byte[] bytes;
+        final boolean striped;
+        final int quorum;
+        final UsbFuture<WriteResult> future;
+
+        PendingWrite(byte[] bytes, boolean striped, int quorum, UsbFuture<WriteResult> future) {
+            this.bytes = bytes;
+            this.striped = striped;
+            this.quorum = quorum;
+            this.future = future;
+        }
+
+        boolean canJoin(PendingWrite first) {
+            return !striped && quorum == first.quorum;
+        }
+    }
+
+    // Completes the writes packed into one transfer with its result.
+    private static final class BatchCallback implements UsbFuture.Callback<WriteResult> {
+        private final PendingWrite[] mWrites;
+
+        BatchCallback(PendingWrite[] writes) {
+            mWrites = writes;
+        }
+
+        public void onSuccess(WriteResult result) {
+            for (PendingWrite write : mWrites) {
+                write.future.complete(result);
+            }
+        }
+
+        public void onFailure(Throwable error) {
+            for (PendingWrite write : mWrites) {
+                write.future.fail(error);
+            }
+        }
+    }
+
+    private final Sink mSink;
+    private final ArrayBlockingQueue<PendingWrite> mQueue;
+    // Transfer buffer and the writes packed into it, reused for every batch.
+    private final byte[] mBatch;
+    private final List<PendingWrite> mBatched = new ArrayList<PendingWrite>();
+    private volatile boolean mCoalescing = true;
+    private volatile boolean mStopped;
+    private Thread mThread;
+    private volatile long mTransfers;
+    private volatile long mWrites;
+
+    /**
+     * @param sink performs the transfers.
+     * @param maxPacketSize largest transfer small writes are packed into.
+     * @param queueCapacity number of writes that may be pending.
+     */
+    UsbWriter(Sink sink, int maxPacketSize, int queueCapacity) {
+        mSink = sink;
+        mBatch = new byte[maxPacketSize];
+        mQueue = new ArrayBlockingQueue<PendingWrite>(queueCapacity);
+    }
+
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(this, "HidBridge-writer");
+        mThread.start();
+    }
+
+    /**
+     * Stops the writer thread. Writes that are still pending fail with a
+     * CancellationException.
+     */
+    synchronized void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+        PendingWrite write;
+        while ((write = mQueue.poll()) != null) {
+            write.future.cancel(false);
+        }
+    }
+
+    /**
+     * Queues a write of the same bytes to every endpoint. Returns
+     * immediately; the future completes with the result of the transfer the
+     * payload went out in once quorum endpoints succeeded. The array must not
+     * be modified until then.
+     *
+     * @param quorum number of endpoints that must succeed,
+     *            {@link FanOutWriter#ALL} for every endpoint.
+     */
+    UsbFuture<WriteResult> submit(byte[] bytes, int quorum) {
+        return enqueue(new PendingWrite(bytes, false, quorum, new UsbFuture<WriteResult>()));
+    }
+
+    /**
+     * Queues a write that is split across the endpoints. Striped writes are
+     * never packed with others.
+     */
+    UsbFuture<WriteResult> submitStriped(byte[] bytes) {
+        return enqueue(new PendingWrite(bytes, true, FanOutWriter.ALL,
+                new UsbFuture<WriteResult>()));
+    }
+
+    private UsbFuture<WriteResult> enqueue(PendingWrite write) {
+        if (mStopped) {
+            write.future.fail(new IOException("Writer is stopped"));
+        } else if (!mQueue.offer(write)) {
+            write.future.fail(new IOException("Too many pending writes"));
+        }
+        return write.future;
+    }
+
+    /**
+     * Enables or disables packing several pending writes into one transfer.
+     * Enabled by default. Payloads are sent back to back, so disable it for
+     * devices that expect one command per transfer.
+     */
+    void setCoalescing(boolean coalescing) {
+        mCoalescing = coalescing;
+    }
+
+    /**
+     * @return number of writes that are waiting for the writer thread.
+     */
+    int getPendingCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return number of transfers issued.
+     */
+    long getTransferCount() {
+        return mTransfers;
+    }
+
+    /**
+     * @return number of writes sent.
+     */
+    long getWriteCount() {
+        return mWrites;
+    }
+
+    public void run() {
+        while (!mStopped) {
+            PendingWrite first;
+            try {
+                first = mQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first.future.isDone()) {
+                continue;
+            }
+
+            mTransfers++;
+            if (first.striped) {
+                mWrites++;
+                mSink.stripe(first.bytes, first.bytes.length, first.future);
+                continue;
+            }
+            if (first.bytes.length > mBatch.length || !mCoalescing) {
+                // Too big to pack or packing is off, send it on its own.
+                mWrites++;
+                mSink.broadcast(first.bytes, first.bytes.length, first.quorum, first.future);
+                continue;
+            }
+
+            int length = append(first, 0);
+            PendingWrite next;
+            while ((next = mQueue.peek()) != null && next.canJoin(first)
+                    && next.bytes.length <= mBatch.length - length) {
+                next = mQueue.poll();
+                if (next == null) {
+                    break;
+                }
+                if (!next.future.isDone()) {
+                    length = append(next, length);
+                }
+            }
+
+            mWrites += mBatched.size();
+            UsbFuture<WriteResult> result = new UsbFuture<WriteResult>();
+            result.addCallback(new BatchCallback(
+                    mBatched.toArray(new PendingWrite[mBatched.size()])));
+            mBatched.clear();
+            mSink.broadcast(mBatch, length, first.quorum, result);
+        }
+
+        // Whatever is left will not be written anymore.
+        PendingWrite write;
+        while ((write = mQueue.poll()) != null) {
+            write.future.cancel(false);
+        }
+    }
+
+    private int append(PendingWrite write, int offset) {
+        System.arraycopy(write.bytes, 0, mBatch, offset, write.bytes.length);
+        mBatched.add(write);
+        return offset + write.bytes.length;
+    }
+}
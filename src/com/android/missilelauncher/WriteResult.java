@@ -0,0 +1,120 @@
+
+package com.android.missilelauncher;
+
+/**
+ * Outcome of a transfer that went out on one or more bulk OUT endpoints,
+ * with the bytes written and the time taken on every endpoint.
+ */
+public final class WriteResult {
+    // Bytes written by an endpoint that had not finished when the result
+    // was reported.
+    public static final int PENDING = -2;
+
+    private final int[] mAddresses;
+    private final int[] mExpected;
+    private final int[] mWritten;
+    private final long[] mNanos;
+    private boolean mSuccess;
+
+    WriteResult(int endpointCount) {
+        mAddresses = new int[endpointCount];
+        mExpected = new int[endpointCount];
+        mWritten = new int[endpointCount];
+        mNanos = new long[endpointCount];
+        for (int i = 0; i < endpointCount; i++) {
+            mWritten[i] = PENDING;
+        }
+    }
+
+    private WriteResult(WriteResult other) {
+        mAddresses = other.mAddresses.clone();
+        mExpected = other.mExpected.clone();
+        mWritten = other.mWritten.clone();
+        mNanos = other.mNanos.clone();
+        mSuccess = other.mSuccess;
+    }
+
+    /**
+     * @return true if the write reached enough endpoints to count as done.
+     */
+    public boolean isSuccess() {
+        return mSuccess;
+    }
+
+    public int getEndpointCount() {
+        return mAddresses.length;
+    }
+
+    public int getEndpointAddress(int index) {
+        return mAddresses[index];
+    }
+
+    /**
+     * @return number of bytes the endpoint was asked to write.
+     */
+    public int getBytesExpected(int index) {
+        return mExpected[index];
+    }
+
+    /**
+     * @return number of bytes the endpoint wrote, -1 if the transfer failed
+     *         or {@link #PENDING} if it had not finished yet.
+     */
+    public int getBytesWritten(int index) {
+        return mWritten[index];
+    }
+
+    /**
+     * @return how long the transfer took on the endpoint.
+     */
+    public long getLatencyNanos(int index) {
+        return mNanos[index];
+    }
+
+    /**
+     * @return bytes written over all the endpoints that finished.
+     */
+    public int getTotalBytesWritten() {
+        int total = 0;
+        for (int written : mWritten) {
+            if (written > 0) {
+                total += written;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(mSuccess ? "OK" : "FAILED");
+        for (int i = 0; i < mAddresses.length; i++) {
+            builder.append(" EP:").append(mAddresses[i]).append(' ');
+            if (mWritten[i] == PENDING) {
+                builder.append("pending");
+            } else {
+                builder.append(mWritten[i]).append('/').append(mExpected[i]).append(" in ")
+                        .append(mNanos[i] / 1000).append("us");
+            }
+        }
+        return builder.toString();
+    }
+
+    void setExpected(int index, int address, int expected) {
+        mAddresses[index] = address;
+        mExpected[index] = expected;
+    }
+
+    void setWritten(int index, int written, long nanos) {
+        mWritten[index] = written;
+        mNanos[index] = nanos;
+    }
+
+    void setSuccess(boolean success) {
+        mSuccess = success;
+    }
+
+    // Copy handed out while some endpoints are still writing.
+    WriteResult snapshot() {
+        return new WriteResult(this);
+    }
+}